@@ -0,0 +1,54 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.StructuredTaskScope;
+
+/**
+ * Runs every device's group of tasks in its own virtual thread, forked from a structured task
+ * scope so that none of them outlives the request, and an interrupted request cancels them all.
+ * Unlike the pool of platform threads there is no bound: a blocked virtual thread only holds on
+ * to its stack.
+ */
+class StructuredExecuteFanOut extends ExecuteFanOut {
+
+    @Override
+    public <T> List<Outcome<T>> run(List<String> keys, IndexedTask<T> task)
+            throws InterruptedException {
+        Map<String, List<Integer>> groups = groupByKey(keys);
+        List<Outcome<T>> outcomes = newOutcomes(keys.size());
+
+        if (groups.size() == 1) {
+            runGroup(groups.values().iterator().next(), task, outcomes);
+            return outcomes;
+        }
+        try (StructuredTaskScope.ShutdownOnFailure scope =
+                new StructuredTaskScope.ShutdownOnFailure()) {
+            for (List<Integer> group : groups.values()) {
+                scope.fork(() -> {
+                    runGroup(group, task, outcomes);
+                    return null;
+                });
+            }
+            // runGroup records every failure in its outcomes
+            scope.join().throwIfFailed(IllegalStateException::new);
+        }
+        return outcomes;
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import com.google.actions.api.smarthome.ExecuteRequest;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures applying one command to one device: on its own through {@link DeviceCommands}, and
+ * through {@link DeviceStore#execute} including the device lookup and batching of the write.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class DeviceCommandsBenchmark {
+
+    @Param({"OnOff", "BrightnessAbsolute", "ThermostatTemperatureSetpoint", "SetFanSpeed",
+            "StartStop", "LockUnlock"})
+    public String command;
+
+    private InMemoryDeviceStore store;
+    private String deviceId;
+    private Map<String, Object> device;
+    private ExecuteRequest.Inputs.Payload.Commands.Execution execution;
+
+    @Setup
+    public void setUp() {
+        String type;
+        String params;
+        switch (command) {
+            case "BrightnessAbsolute":
+                type = "LIGHT";
+                params = "{\"brightness\":80}";
+                break;
+            case "ThermostatTemperatureSetpoint":
+                type = "THERMOSTAT";
+                params = "{\"thermostatTemperatureSetpoint\":22.5}";
+                break;
+            case "SetFanSpeed":
+                type = "FAN";
+                params = "{\"fanSpeed\":\"high\"}";
+                break;
+            case "StartStop":
+                type = "WASHER";
+                params = "{\"start\":true}";
+                break;
+            case "LockUnlock":
+                type = "LOCK";
+                params = "{\"lock\":false}";
+                break;
+            default:
+                type = "LIGHT";
+                params = "{\"on\":true}";
+                break;
+        }
+        deviceId = "device-" + type.toLowerCase();
+        device = Fleet.device(deviceId, type);
+        store = new InMemoryDeviceStore();
+        store.addUser(Fleet.USER_ID, Fleet.AUTHORIZATION.substring(7));
+        store.addDevice(Fleet.USER_ID, device);
+        execution = Fleet.execution("{\"command\":\"action.devices.commands." + command
+                + "\",\"params\":" + params + "}");
+    }
+
+    @Benchmark
+    public Map<String, Object> apply() throws Exception {
+        return DeviceCommands.apply(device, execution, new LinkedHashMap<>());
+    }
+
+    @Benchmark
+    public Map<String, Object> storeExecute() throws Exception {
+        return store.execute(Fleet.USER_ID, deviceId, execution,
+                new ExecuteBatch(Fleet.USER_ID));
+    }
+}
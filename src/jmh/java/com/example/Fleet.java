@@ -0,0 +1,159 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import com.google.actions.api.smarthome.ExecuteRequest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds devices shaped like the ones the frontend creates, cycling through lights, thermostats,
+ * fans, washers and locks so that every request touches a mix of traits.
+ */
+final class Fleet {
+
+    static final String USER_ID = "1234";
+    static final String AUTHORIZATION = "Bearer 123access";
+
+    private static final String[] TYPES = {"LIGHT", "THERMOSTAT", "FAN", "WASHER", "LOCK"};
+
+    private Fleet() {
+    }
+
+    /** Adds {@code size} devices, named {@code device-0} onwards, to the default user. */
+    static void create(InMemoryDeviceStore store, int size) {
+        store.addUser(USER_ID, AUTHORIZATION.substring(7));
+        for (int i = 0; i < size; i++) {
+            store.addDevice(USER_ID, device("device-" + i, TYPES[i % TYPES.length]));
+        }
+    }
+
+    static List<String> deviceIds(int count) {
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            ids.add("device-" + i);
+        }
+        return ids;
+    }
+
+    static Map<String, Object> device(String deviceId, String type) {
+        Map<String, Object> states = new HashMap<>();
+        states.put("online", true);
+        Map<String, Object> attributes = new HashMap<>();
+        List<String> traits = new ArrayList<>();
+        switch (type) {
+            case "LIGHT":
+                traits.addAll(Arrays.asList("action.devices.traits.OnOff",
+                        "action.devices.traits.Brightness", "action.devices.traits.ColorSetting"));
+                attributes.put("colorModel", "rgb");
+                states.put("on", false);
+                states.put("brightness", 50.0);
+                states.put("color", Collections.singletonMap("spectrumRgb", 16711680.0));
+                break;
+            case "THERMOSTAT":
+                traits.add("action.devices.traits.TemperatureSetting");
+                attributes.put("availableThermostatModes", "off,heat,cool,on");
+                attributes.put("thermostatTemperatureUnit", "C");
+                states.put("thermostatMode", "heat");
+                states.put("thermostatTemperatureSetpoint", 20.0);
+                states.put("thermostatTemperatureAmbient", 19.0);
+                break;
+            case "FAN":
+                traits.addAll(Arrays.asList("action.devices.traits.OnOff",
+                        "action.devices.traits.FanSpeed"));
+                attributes.put("availableFanSpeeds", Collections.singletonMap("ordered", true));
+                states.put("on", false);
+                states.put("currentFanSpeedSetting", "low");
+                break;
+            case "WASHER":
+                traits.addAll(Arrays.asList("action.devices.traits.OnOff",
+                        "action.devices.traits.StartStop", "action.devices.traits.RunCycle"));
+                attributes.put("pausable", true);
+                states.put("on", false);
+                states.put("isRunning", false);
+                states.put("isPaused", false);
+                break;
+            default:
+                traits.add("action.devices.traits.LockUnlock");
+                states.put("isLocked", true);
+                states.put("isJammed", false);
+                break;
+        }
+
+        Map<String, Object> device = new HashMap<>();
+        device.put("deviceId", deviceId);
+        device.put("type", "action.devices.types." + type);
+        device.put("traits", traits);
+        device.put("name", deviceId);
+        device.put("defaultNames", Collections.singletonList("Smart " + type.toLowerCase()));
+        device.put("nicknames", Collections.singletonList(deviceId));
+        device.put("willReportState", true);
+        device.put("roomHint", "Living room");
+        device.put("manufacturer", "L-companie");
+        device.put("model", "L-" + type.toLowerCase());
+        device.put("hwVersion", "1.0");
+        device.put("swVersion", "2.0");
+        device.put("attributes", attributes);
+        device.put("customData", Collections.singletonMap("fooValue", 74.0));
+        device.put("errorCode", "");
+        device.put("tfa", "");
+        device.put("states", states);
+        return device;
+    }
+
+    static String syncRequest() {
+        return "{\"requestId\":\"sync\",\"inputs\":[{\"intent\":\"action.devices.SYNC\"}]}";
+    }
+
+    static String queryRequest(List<String> deviceIds) {
+        StringBuilder devices = new StringBuilder();
+        for (String deviceId : deviceIds) {
+            if (devices.length() > 0) {
+                devices.append(',');
+            }
+            devices.append("{\"id\":\"").append(deviceId).append("\"}");
+        }
+        return "{\"requestId\":\"query\",\"inputs\":[{\"intent\":\"action.devices.QUERY\","
+                + "\"payload\":{\"devices\":[" + devices + "]}}]}";
+    }
+
+    /**
+     * Returns an EXECUTE request that switches {@code deviceIds} on or off. Requests with the same
+     * {@code requestId} are treated as retries and only executed once.
+     */
+    static String executeRequest(String requestId, List<String> deviceIds, boolean on) {
+        StringBuilder devices = new StringBuilder();
+        for (String deviceId : deviceIds) {
+            if (devices.length() > 0) {
+                devices.append(',');
+            }
+            devices.append("{\"id\":\"").append(deviceId).append("\"}");
+        }
+        return "{\"requestId\":\"" + requestId + "\",\"inputs\":[{\"intent\":"
+                + "\"action.devices.EXECUTE\",\"payload\":{\"commands\":[{\"devices\":["
+                + devices + "],\"execution\":[{\"command\":\"action.devices.commands.OnOff\","
+                + "\"params\":{\"on\":" + on + "}}]}]}}]}";
+    }
+
+    static ExecuteRequest.Inputs.Payload.Commands.Execution execution(String json) {
+        return Json.GSON.fromJson(json, ExecuteRequest.Inputs.Payload.Commands.Execution.class);
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import com.google.actions.api.smarthome.SmartHomeApp;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Drives SYNC, QUERY and EXECUTE through {@link MySmartHomeApp} the way
+ * {@link SmartHomeServlet} does, including the Actions library's parsing and serialization,
+ * against an {@link InMemoryDeviceStore} so that only the fulfillment itself is measured.
+ *
+ * <p>Every fork gets its own store, selected with {@code smarthome.store=memory}. Run with
+ * {@code gradle jmh}; the sample time mode reports latency percentiles, the gc profiler the
+ * allocated bytes per request in {@code gc.alloc.rate.norm}.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = "-Dsmarthome.store=memory")
+public class FulfillmentBenchmark {
+
+    @Param({"10", "100", "1000", "10000"})
+    public int fleetSize;
+
+    /** Devices targeted by one QUERY or EXECUTE request. */
+    @Param({"10"})
+    public int requestSize;
+
+    private final SmartHomeApp app = new MySmartHomeApp();
+    private final Map<String, String> headers =
+            Collections.singletonMap("authorization", Fleet.AUTHORIZATION);
+    private final AtomicLong requestIds = new AtomicLong();
+    private String syncRequest;
+    private String queryRequest;
+    private List<String> executeTargets;
+    private boolean on;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        // Same instance MySmartHomeApp uses, since this fork runs with smarthome.store=memory
+        InMemoryDeviceStore store = (InMemoryDeviceStore) DeviceStore.getInstance();
+        Fleet.create(store, fleetSize);
+        List<String> targets = Fleet.deviceIds(Math.min(requestSize, fleetSize));
+        syncRequest = Fleet.syncRequest();
+        queryRequest = Fleet.queryRequest(targets);
+        executeTargets = targets;
+    }
+
+    @Benchmark
+    public String sync() throws Exception {
+        return app.handleRequest(syncRequest, headers).get();
+    }
+
+    /** SYNC right after a device changed, so the devices have to be built again. */
+    @Benchmark
+    public String syncUncached() throws Exception {
+        MySmartHomeApp.invalidateSync(Fleet.USER_ID);
+        return app.handleRequest(syncRequest, headers).get();
+    }
+
+    @Benchmark
+    public String query() throws Exception {
+        return app.handleRequest(queryRequest, headers).get();
+    }
+
+    @Benchmark
+    public String execute() throws Exception {
+        // Alternate so that every request actually changes the devices, and use a new request id
+        // each time so that none is answered with the response to an earlier one
+        on = !on;
+        String request = Fleet.executeRequest(Long.toString(requestIds.incrementAndGet()),
+                executeTargets, on);
+        return app.handleRequest(request, headers).get();
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import com.google.gson.Gson;
+import com.google.protobuf.Struct;
+import com.google.protobuf.util.JsonFormat;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Compares converting one device's attributes to a Struct through JSON text, as onSync used to,
+ * with {@link StructConverter}. Run with the gc profiler to see the allocated bytes per device in
+ * {@code gc.alloc.rate.norm}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class StructConverterBenchmark {
+
+    private static final String ATTRIBUTES = "{"
+            + "\"availableThermostatModes\": \"off,heat,cool,on,heatcool\","
+            + "\"thermostatTemperatureUnit\": \"C\","
+            + "\"colorModel\": \"rgb\","
+            + "\"colorTemperatureRange\": "
+            + "{\"temperatureMinK\": 2000, \"temperatureMaxK\": 9000},"
+            + "\"availableToggles\": [{\"name\": \"quiet\", \"name_values\": "
+            + "[{\"name_synonym\": [\"quiet\", \"silent\"], \"lang\": \"en\"}]}],"
+            + "\"availableModes\": [{\"name\": \"load\", \"name_values\": "
+            + "[{\"name_synonym\": [\"load\", \"size\"], \"lang\": \"en\"}], "
+            + "\"settings\": [{\"setting_name\": \"small\", \"setting_values\": "
+            + "[{\"setting_synonym\": [\"small\", \"half\"], \"lang\": \"en\"}]}], "
+            + "\"ordered\": true}],"
+            + "\"queryOnlyOpenClose\": false"
+            + "}";
+
+    private Map<String, Object> attributes;
+
+    @Setup
+    public void setUp() {
+        attributes = new Gson().fromJson(ATTRIBUTES, HashMap.class);
+    }
+
+    @Benchmark
+    public Struct jsonFormat() throws Exception {
+        Struct.Builder struct = Struct.newBuilder();
+        JsonFormat.parser().ignoringUnknownFields()
+                .merge(new JSONObject(attributes).toString(), struct);
+        return struct.build();
+    }
+
+    @Benchmark
+    public Struct structConverter() throws Exception {
+        return StructConverter.toStruct(attributes);
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares platform and virtual threads when many requests wait on I/O at the same time. Every
+ * task blocks for {@code latencyMillis}, standing in for a Firestore or Home Graph call.
+ * {@code fulfillment} runs {@code concurrency} requests on the fulfillment executor,
+ * {@code fanOut} executes commands on {@code concurrency} devices of one request.
+ *
+ * <p>Only platform threads are measured by default. The Java 21 build adds the {@code virtual}
+ * runs: {@code gradle jmh -Pjava21}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@State(Scope.Benchmark)
+public class ThreadingBenchmark {
+
+    // "virtual" is added by the Java 21 build, it cannot be loaded without it
+    @Param({"platform"})
+    public String threads;
+
+    @Param({"100", "1000", "10000"})
+    public int concurrency;
+
+    @Param({"10"})
+    public int latencyMillis;
+
+    private ExecutorService executor;
+    private ExecuteFanOut fanOut;
+    private List<String> deviceIds;
+
+    @Setup
+    public void setUp() throws ReflectiveOperationException {
+        if ("virtual".equals(threads)) {
+            ThreadingSupport support = Threading.newVirtualThreadSupport();
+            executor = support.newExecutor("fulfillment");
+            fanOut = support.newFanOut();
+        } else {
+            // The defaults of smarthome.fulfillment.threads and smarthome.execute.threads
+            executor = Threading.newExecutor("fulfillment", 64, concurrency);
+            fanOut = new ExecuteFanOut(16);
+        }
+        deviceIds = new ArrayList<>(concurrency);
+        for (int i = 0; i < concurrency; i++) {
+            deviceIds.add("device-" + i);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Benchmark
+    public int fulfillment() throws Exception {
+        List<Future<Integer>> futures = new ArrayList<>(concurrency);
+        for (int i = 0; i < concurrency; i++) {
+            final int request = i;
+            futures.add(executor.submit(() -> {
+                Thread.sleep(latencyMillis);
+                return request;
+            }));
+        }
+        int sum = 0;
+        for (Future<Integer> future : futures) {
+            sum += future.get();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public List<ExecuteFanOut.Outcome<Integer>> fanOut() throws InterruptedException {
+        return fanOut.run(deviceIds, index -> {
+            Thread.sleep(latencyMillis);
+            return index;
+        });
+    }
+}
@@ -0,0 +1,297 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import com.google.cloud.firestore.Firestore;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends a mix of SYNC, QUERY and EXECUTE requests to a running fulfillment at a fixed rate and
+ * reports the sustained throughput, latency percentiles and error rate of every intent.
+ *
+ * <p>Requests are started on schedule whether or not earlier ones have completed, and latency is
+ * measured from the scheduled start, so a server that falls behind shows up in the percentiles
+ * instead of silently lowering the rate. Before the run the default user and
+ * {@code loadTest.devices} devices are written to the Firestore emulator the server uses.
+ *
+ * <p>Configured with system properties, see README.
+ */
+public class LoadTest {
+
+    private static final String URL = System.getProperty("loadTest.url", "http://localhost:8080");
+    private static final int RATE = Integer.getInteger("loadTest.rate", 100);
+    private static final int DURATION_SECONDS = Integer.getInteger("loadTest.durationSeconds", 60);
+    private static final int WARMUP_SECONDS = Integer.getInteger("loadTest.warmupSeconds", 10);
+    private static final String MIX = System.getProperty("loadTest.mix",
+            "SYNC=10,QUERY=60,EXECUTE=30");
+    private static final int DEVICES = Integer.getInteger("loadTest.devices", 100);
+    private static final int REQUEST_DEVICES = Integer.getInteger("loadTest.requestDevices", 5);
+    private static final int THREADS = Integer.getInteger("loadTest.threads", 64);
+    private static final String USER_ID = "1234";
+    private static final String ACCESS_TOKEN = "123access";
+
+    private final Map<String, Integer> weights = new LinkedHashMap<>();
+    private final Map<String, Intent> intents = new LinkedHashMap<>();
+    private int totalWeight;
+
+    public static void main(String[] args) throws Exception {
+        LoadTest loadTest = new LoadTest();
+        if (Boolean.parseBoolean(System.getProperty("loadTest.seed", "true"))) {
+            loadTest.seed();
+        }
+        loadTest.run();
+        System.exit(0);
+    }
+
+    LoadTest() {
+        for (String entry : MIX.split(",")) {
+            String[] intentAndWeight = entry.trim().split("=");
+            int weight = Integer.parseInt(intentAndWeight[1]);
+            weights.put(intentAndWeight[0], weight);
+            intents.put(intentAndWeight[0], new Intent());
+            totalWeight += weight;
+        }
+    }
+
+    /** Writes the default user to the emulator and creates the devices through the server. */
+    void seed() throws Exception {
+        String emulatorHost = System.getProperty("loadTest.emulatorHost",
+                FirestoreEmulator.getHost() != null ? FirestoreEmulator.getHost()
+                        : "localhost:8081");
+        Firestore firestore = FirestoreEmulator.connect(emulatorHost,
+                System.getProperty("loadTest.projectId", "smart-home-local"));
+        Map<String, Object> user = new HashMap<>();
+        user.put("fakeAccessToken", ACCESS_TOKEN);
+        user.put("fakeRefreshToken", "123refresh");
+        user.put("homegraph", false);
+        firestore.collection("users").document(USER_ID).set(user).get();
+
+        StringBuilder devices = new StringBuilder();
+        for (int i = 0; i < DEVICES; i++) {
+            Map<String, Object> device = new HashMap<>();
+            device.put("userId", USER_ID);
+            device.put("data", device("light-" + i));
+            devices.append(Json.GSON.toJson(device)).append('\n');
+        }
+        Response response = post(URL + "/smarthome/create?bulk=true", "application/x-ndjson",
+                devices.toString());
+        if (response.status != HttpURLConnection.HTTP_OK) {
+            throw new IllegalStateException("seeding devices failed: " + response.status);
+        }
+        System.out.println("seeded " + DEVICES + " devices");
+    }
+
+    void run() throws InterruptedException {
+        System.setProperty("http.maxConnections", Integer.toString(THREADS));
+        ExecutorService workers = Executors.newFixedThreadPool(THREADS);
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) / RATE;
+        long start = System.nanoTime();
+        long measureFrom = start + TimeUnit.SECONDS.toNanos(WARMUP_SECONDS);
+        long end = measureFrom + TimeUnit.SECONDS.toNanos(DURATION_SECONDS);
+        System.out.println("sending " + RATE + " requests/s of " + MIX + " to " + URL + " for "
+                + WARMUP_SECONDS + "+" + DURATION_SECONDS + " s");
+
+        for (long i = 0; ; i++) {
+            long scheduledAt = start + i * intervalNanos;
+            if (scheduledAt >= end) {
+                break;
+            }
+            long wait = scheduledAt - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            String intent = pickIntent();
+            boolean measured = scheduledAt >= measureFrom;
+            workers.execute(() -> send(intent, scheduledAt, measured));
+        }
+        workers.shutdown();
+        workers.awaitTermination(1, TimeUnit.MINUTES);
+        report(TimeUnit.NANOSECONDS.toSeconds(end - measureFrom));
+    }
+
+    private String pickIntent() {
+        int pick = ThreadLocalRandom.current().nextInt(totalWeight);
+        for (Map.Entry<String, Integer> weight : weights.entrySet()) {
+            pick -= weight.getValue();
+            if (pick < 0) {
+                return weight.getKey();
+            }
+        }
+        throw new IllegalStateException();
+    }
+
+    private void send(String intent, long scheduledAt, boolean measured) {
+        Intent stats = intents.get(intent);
+        boolean failed;
+        boolean deviceErrors = false;
+        try {
+            Response response = post(URL + "/smarthome", "application/json", request(intent));
+            failed = response.status != HttpURLConnection.HTTP_OK;
+            deviceErrors = response.body.contains("\"errorCode\"");
+        } catch (IOException e) {
+            failed = true;
+        }
+        if (!measured) {
+            return;
+        }
+        stats.latency.recordSince(scheduledAt);
+        if (failed) {
+            stats.errors.incrementAndGet();
+        } else if (deviceErrors) {
+            stats.deviceErrors.incrementAndGet();
+        }
+    }
+
+    private String request(String intent) {
+        String requestId = Long.toString(ThreadLocalRandom.current().nextLong());
+        List<String> devices = new ArrayList<>();
+        for (int i = 0; i < Math.min(REQUEST_DEVICES, DEVICES); i++) {
+            devices.add("{\"id\":\"light-" + ThreadLocalRandom.current().nextInt(DEVICES) + "\"}");
+        }
+        String targets = String.join(",", devices);
+        switch (intent) {
+            case "SYNC":
+                return "{\"requestId\":\"" + requestId + "\",\"inputs\":[{\"intent\":"
+                        + "\"action.devices.SYNC\"}]}";
+            case "QUERY":
+                return "{\"requestId\":\"" + requestId + "\",\"inputs\":[{\"intent\":"
+                        + "\"action.devices.QUERY\",\"payload\":{\"devices\":[" + targets
+                        + "]}}]}";
+            case "EXECUTE":
+                return "{\"requestId\":\"" + requestId + "\",\"inputs\":[{\"intent\":"
+                        + "\"action.devices.EXECUTE\",\"payload\":{\"commands\":[{\"devices\":["
+                        + targets + "],\"execution\":[{\"command\":"
+                        + "\"action.devices.commands.OnOff\",\"params\":{\"on\":"
+                        + ThreadLocalRandom.current().nextBoolean() + "}}]}]}}]}";
+            default:
+                throw new IllegalArgumentException("unknown intent " + intent);
+        }
+    }
+
+    private void report(long seconds) {
+        System.out.println(String.format("%-8s %9s %9s %8s %8s %9s %9s %9s %9s %9s",
+                "intent", "requests", "req/s", "errors", "devErr", "p50 ms", "p90 ms",
+                "p99 ms", "p99.9 ms", "max ms"));
+        for (Map.Entry<String, Intent> intent : intents.entrySet()) {
+            Histogram latency = intent.getValue().latency;
+            long count = latency.getCount();
+            System.out.println(String.format(
+                    "%-8s %9d %9.1f %7.2f%% %7.2f%% %9.1f %9.1f %9.1f %9.1f %9.1f",
+                    intent.getKey(), count, (double) count / seconds,
+                    percent(intent.getValue().errors.get(), count),
+                    percent(intent.getValue().deviceErrors.get(), count),
+                    millis(latency.getValueAtQuantile(0.5)),
+                    millis(latency.getValueAtQuantile(0.9)),
+                    millis(latency.getValueAtQuantile(0.99)),
+                    millis(latency.getValueAtQuantile(0.999)),
+                    millis(latency.getValueAtQuantile(1))));
+        }
+    }
+
+    private static double percent(long part, long total) {
+        return total == 0 ? 0 : 100.0 * part / total;
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    private static Response post(String url, String contentType, String body)
+            throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", contentType);
+        connection.setRequestProperty("Authorization", "Bearer " + ACCESS_TOKEN);
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(body.getBytes(StandardCharsets.UTF_8));
+        }
+        int status = connection.getResponseCode();
+        InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        if (in != null) {
+            // Reading to the end lets the connection be reused
+            try (InputStream stream = in) {
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = stream.read(buffer)) != -1) {
+                    response.write(buffer, 0, read);
+                }
+            }
+        }
+        return new Response(status, response.toString("UTF-8"));
+    }
+
+    private static Map<String, Object> device(String deviceId) {
+        Map<String, Object> states = new HashMap<>();
+        states.put("online", true);
+        states.put("on", false);
+        states.put("brightness", 50);
+        Map<String, Object> device = new HashMap<>();
+        device.put("deviceId", deviceId);
+        device.put("type", "action.devices.types.LIGHT");
+        device.put("traits", Arrays.asList("action.devices.traits.OnOff",
+                "action.devices.traits.Brightness"));
+        device.put("name", deviceId);
+        device.put("defaultNames", Arrays.asList("Smart light"));
+        device.put("nicknames", Arrays.asList(deviceId));
+        device.put("willReportState", true);
+        device.put("roomHint", "Living room");
+        device.put("manufacturer", "L-companie");
+        device.put("model", "L-light");
+        device.put("hwVersion", "1.0");
+        device.put("swVersion", "2.0");
+        device.put("errorCode", "");
+        device.put("tfa", "");
+        device.put("states", states);
+        return device;
+    }
+
+    private static class Intent {
+        final Histogram latency = new Histogram();
+        final AtomicLong errors = new AtomicLong();
+        final AtomicLong deviceErrors = new AtomicLong();
+    }
+
+    private static class Response {
+        final int status;
+        final String body;
+
+        Response(int status, String body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+}
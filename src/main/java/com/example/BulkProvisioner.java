@@ -0,0 +1,205 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.MalformedJsonException;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Adds many devices at once. Devices are read one at a time from either a JSON array or a stream
+ * of newline-delimited JSON objects, each shaped like the body of a single
+ * {@code /smarthome/create} call. They are written in chunks per user, with a bounded number of
+ * chunks in flight.
+ *
+ * <p>A malformed body stops the reading, but the devices read up to that point are still written.
+ */
+public class BulkProvisioner {
+
+    private final DeviceStore database;
+    private final Gson gson;
+    private final int chunkSize;
+    private final int maxInFlight;
+    private final Set<String> userIds = new LinkedHashSet<>();
+    private String error;
+
+    public BulkProvisioner(DeviceStore database, Gson gson, int chunkSize, int maxInFlight) {
+        this.database = database;
+        this.gson = gson;
+        this.chunkSize = Math.min(chunkSize, DeviceStore.MAX_BATCH_WRITES);
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * Provisions every device read from {@code reader} and returns the results in input order. If
+     * the body is malformed, the results end with an {@code invalidJson} entry without a device
+     * id, see {@link #getError()}.
+     *
+     * @throws IOException if the body could not be read, once the devices read before have been
+     *     written
+     */
+    public List<DeviceResult> provision(JsonReader reader)
+            throws IOException, InterruptedException {
+        Semaphore inFlight = new Semaphore(maxInFlight);
+        List<DeviceResult> results = new ArrayList<>();
+        Map<String, List<DeviceResult>> chunks = new LinkedHashMap<>();
+        List<CompletableFuture<?>> writes = new ArrayList<>();
+        IOException readError = null;
+        try {
+            read(reader, inFlight, results, chunks, writes);
+        } catch (MalformedJsonException | EOFException | JsonParseException
+                | IllegalStateException e) {
+            error = e.getMessage();
+        } catch (IOException e) {
+            readError = e;
+        }
+        for (Map.Entry<String, List<DeviceResult>> chunk : chunks.entrySet()) {
+            writes.add(write(chunk.getKey(), chunk.getValue(), inFlight));
+        }
+        CompletableFuture.allOf(writes.toArray(new CompletableFuture[0])).join();
+        if (readError != null) {
+            throw readError;
+        }
+        if (error != null) {
+            DeviceResult invalid = new DeviceResult(null, null);
+            invalid.fail("invalidJson");
+            results.add(invalid);
+        }
+        return results;
+    }
+
+    /**
+     * Returns why the body could not be parsed, or null if it was read to the end. Devices after
+     * the malformed part were not provisioned.
+     */
+    public String getError() {
+        return error;
+    }
+
+    /** Returns the users that had at least one device added. */
+    public Set<String> getUserIds() {
+        synchronized (userIds) {
+            return new LinkedHashSet<>(userIds);
+        }
+    }
+
+    /** Reads devices and starts writing every chunk that is full, until the body ends. */
+    private void read(JsonReader reader, Semaphore inFlight, List<DeviceResult> results,
+            Map<String, List<DeviceResult>> chunks, List<CompletableFuture<?>> writes)
+            throws IOException, InterruptedException {
+        reader.setLenient(true);
+        boolean array = reader.peek() == JsonToken.BEGIN_ARRAY;
+        if (array) {
+            reader.beginArray();
+        }
+        while (array ? reader.hasNext() : reader.peek() != JsonToken.END_DOCUMENT) {
+            DeviceRequests.Create device = gson.fromJson(reader, DeviceRequests.Create.class);
+            String userId = device == null ? null : device.getUserId();
+            Map<String, Object> data = device == null ? null : device.getData();
+            Object deviceId = data == null ? null : data.get("deviceId");
+            DeviceResult result = new DeviceResult(deviceId instanceof String
+                    ? (String) deviceId : null, data);
+            results.add(result);
+            if (userId == null || result.deviceId == null) {
+                result.fail("invalidDevice");
+                continue;
+            }
+
+            List<DeviceResult> chunk = chunks.computeIfAbsent(userId, id -> new ArrayList<>());
+            chunk.add(result);
+            if (chunk.size() >= chunkSize) {
+                writes.add(write(userId, chunks.remove(userId), inFlight));
+            }
+        }
+        if (array) {
+            reader.endArray();
+        }
+    }
+
+    private CompletableFuture<?> write(String userId, List<DeviceResult> chunk,
+            Semaphore inFlight) throws InterruptedException {
+        inFlight.acquire();
+        List<Map<String, Object>> devices = new ArrayList<>();
+        for (DeviceResult result : chunk) {
+            devices.add(result.data);
+        }
+        CompletableFuture<Void> write;
+        try {
+            write = database.addDevices(userId, devices);
+        } catch (RuntimeException e) {
+            write = new CompletableFuture<>();
+            write.completeExceptionally(e);
+        }
+        return write.handle((ignored, error) -> {
+            inFlight.release();
+            synchronized (userIds) {
+                for (DeviceResult result : chunk) {
+                    if (error == null) {
+                        result.status = "SUCCESS";
+                    } else {
+                        result.fail("transientError");
+                    }
+                }
+                if (error == null) {
+                    userIds.add(userId);
+                }
+            }
+            return null;
+        });
+    }
+
+    public static class DeviceResult {
+        private final String deviceId;
+        private String status = "PENDING";
+        private String errorCode;
+        private final transient Map<String, Object> data;
+
+        DeviceResult(String deviceId, Map<String, Object> data) {
+            this.deviceId = deviceId;
+            this.data = data;
+        }
+
+        void fail(String errorCode) {
+            this.status = "ERROR";
+            this.errorCode = errorCode;
+        }
+
+        public String getDeviceId() {
+            return deviceId;
+        }
+
+        public String getStatus() {
+            return status;
+        }
+
+        public String getErrorCode() {
+            return errorCode;
+        }
+    }
+}
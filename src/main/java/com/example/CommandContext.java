@@ -0,0 +1,87 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import com.google.actions.api.smarthome.ExecuteRequest;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * What a {@link TraitCommand} handler sees of the device it is applied to: the current document,
+ * the command parameters, and sinks for the states to report and the fields to persist.
+ */
+public class CommandContext {
+
+    private final Map<String, Object> device;
+    private final Map<String, Object> currentStates;
+    private final ExecuteRequest.Inputs.Payload.Commands.Execution execution;
+    private final Map<String, Object> states;
+    private final Map<String, Object> updates;
+
+    CommandContext(Map<String, Object> device,
+            ExecuteRequest.Inputs.Payload.Commands.Execution execution,
+            Map<String, Object> updates) {
+        this.device = device;
+        Map<String, Object> deviceStates = (Map<String, Object>) device.get("states");
+        this.currentStates = deviceStates == null ? new HashMap<>() : deviceStates;
+        this.execution = execution;
+        this.states = new HashMap<>(currentStates);
+        this.updates = updates;
+    }
+
+    /** Returns a top-level field of the device document, e.g. {@code attributes}. */
+    public Object getDeviceField(String name) {
+        return device.get(name);
+    }
+
+    /** Returns the value of a state before the command was applied. */
+    public Object getState(String name) {
+        return currentStates.get(name);
+    }
+
+    public Map<String, Object> getParams() {
+        return execution.getParams();
+    }
+
+    public Object getParam(String name) {
+        return execution.getParams().get(name);
+    }
+
+    public boolean hasParam(String name) {
+        return execution.getParams().containsKey(name);
+    }
+
+    /** Persists a state and reports it as the new value. */
+    public void set(String name, Object value) {
+        write(name, value);
+        report(name, value);
+    }
+
+    /** Persists a state, {@code name} may be a dot-separated path below {@code states}. */
+    public void write(String name, Object value) {
+        updates.put("states." + name, value);
+    }
+
+    /** Reports a state in the EXECUTE response without persisting it. */
+    public void report(String name, Object value) {
+        states.put(name, value);
+    }
+
+    Map<String, Object> getStates() {
+        return states;
+    }
+}
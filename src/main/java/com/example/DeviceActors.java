@@ -0,0 +1,270 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Serializes the mutations of each device, so that read-modify-write commands like TimerAdjust,
+ * SetModes and SetToggles never lose a concurrent update, without the retries of a Firestore
+ * transaction.
+ *
+ * <p>Every device with work in progress has an actor: a mailbox of mutations that run one at a
+ * time in the order they were sent, and the device document as of the last mutation. A mutation
+ * sent to an idle actor runs right away on the calling thread; otherwise it is queued and run by
+ * the thread that is draining the mailbox while the caller waits. The document stays
+ * authoritative until a write has persisted it. Writes of a device are issued one after another,
+ * see {@link #beginWrite}, and each carries the latest values of the fields it writes.
+ *
+ * <p>Mutations are only serialized within this process. Instances that share a Firestore database
+ * can still overwrite each other's writes.
+ */
+public class DeviceActors {
+
+    private final ConcurrentMap<String, Actor> actors = new ConcurrentHashMap<>();
+    private final LongAdder queued = new LongAdder();
+    // Writes register with every device they persist at once, so two writes never wait for each
+    // other
+    private final Object writeOrder = new Object();
+
+    /**
+     * Runs {@code mutation} once every mutation sent to the device before it has run, and returns
+     * its result.
+     */
+    public <T> T call(String userId, String deviceId, Mutation<T> mutation) throws Exception {
+        String key = key(userId, deviceId);
+        Actor actor = acquire(key);
+        try {
+            return actor.call(mutation);
+        } finally {
+            release(key);
+        }
+    }
+
+    /**
+     * Starts a write of the mutations of {@code deviceIds}, waiting for the writes already
+     * started for any of them. The returned write must be closed once it has completed.
+     */
+    public Write beginWrite(String userId, Collection<String> deviceIds)
+            throws InterruptedException {
+        List<CompletableFuture<Void>> previous = new ArrayList<>();
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        synchronized (writeOrder) {
+            for (String deviceId : deviceIds) {
+                // Held until the write is closed
+                Actor actor = acquire(key(userId, deviceId));
+                previous.add(actor.lastWrite);
+                actor.lastWrite = done;
+            }
+        }
+        Write write = new Write(userId, deviceIds, done);
+        try {
+            CompletableFuture.allOf(previous.toArray(new CompletableFuture[0])).get();
+        } catch (ExecutionException e) {
+            // Previous writes are only ever completed normally
+            throw new IllegalStateException(e.getCause());
+        } catch (InterruptedException e) {
+            write.close();
+            throw e;
+        }
+        return write;
+    }
+
+    /** Returns how many mutations had to wait for another mutation of the same device. */
+    public long getQueued() {
+        return queued.sum();
+    }
+
+    private Actor acquire(String key) {
+        return actors.compute(key, (k, actor) -> {
+            Actor acquired = actor == null ? new Actor() : actor;
+            acquired.references++;
+            return acquired;
+        });
+    }
+
+    private void release(String key) {
+        actors.computeIfPresent(key, (k, actor) -> {
+            actor.references--;
+            // Nobody else can reach an actor that is not referenced, so it is safe to drop
+            return actor.references == 0 && actor.device.isPersisted() ? null : actor;
+        });
+    }
+
+    private static String key(String userId, String deviceId) {
+        return userId + '/' + deviceId;
+    }
+
+    public interface Mutation<T> {
+        T apply(Device device) throws Exception;
+    }
+
+    /** The state an actor keeps for its device, only ever touched by one mutation at a time. */
+    public static class Device {
+        private Map<String, Object> document;
+        private long mutations;
+        private long persisted;
+
+        /**
+         * Returns the document as of the last mutation, or null if the database is up to date
+         * and should be read instead.
+         */
+        public Map<String, Object> getDocument() {
+            return isPersisted() ? null : document;
+        }
+
+        /** Records a mutation that has changed the device to {@code document}. */
+        public void update(Map<String, Object> document) {
+            this.document = document;
+            mutations++;
+        }
+
+        /** Forgets the document, e.g. after the device has been deleted or a write failed. */
+        public void discard() {
+            document = null;
+            persisted = mutations;
+        }
+
+        boolean isPersisted() {
+            return persisted == mutations;
+        }
+    }
+
+    /** A write of one or more devices, closed once it has completed. */
+    public class Write implements AutoCloseable {
+        private final String userId;
+        private final Collection<String> deviceIds;
+        private final CompletableFuture<Void> done;
+        // Mutations included in the values written, per device
+        private final Map<String, Long> mutations = new HashMap<>();
+
+        Write(String userId, Collection<String> deviceIds, CompletableFuture<Void> done) {
+            this.userId = userId;
+            this.deviceIds = new ArrayList<>(deviceIds);
+            this.done = done;
+        }
+
+        /**
+         * Returns the current values of the given field paths of a device, which may be newer
+         * than {@code fields} if the device has been mutated since.
+         */
+        public Map<String, Object> getFields(String deviceId, Map<String, Object> fields)
+                throws Exception {
+            return call(userId, deviceId, device -> {
+                mutations.put(deviceId, device.mutations);
+                Map<String, Object> document = device.getDocument();
+                if (document == null) {
+                    return fields;
+                }
+                Map<String, Object> current = new LinkedHashMap<>();
+                for (Map.Entry<String, Object> field : fields.entrySet()) {
+                    Object value = DeviceStateCache.getField(document, field.getKey());
+                    current.put(field.getKey(), value != null ? value : field.getValue());
+                }
+                return current;
+            });
+        }
+
+        /**
+         * Records the outcome of the write for a device. If it failed, the document of the device
+         * is discarded and it is read from the database again.
+         */
+        public void complete(String deviceId, boolean persisted) throws Exception {
+            call(userId, deviceId, device -> {
+                if (!persisted) {
+                    device.discard();
+                } else if (mutations.containsKey(deviceId)) {
+                    device.persisted = Math.max(device.persisted, mutations.get(deviceId));
+                }
+                return null;
+            });
+        }
+
+        /** Lets the next write of these devices start. */
+        @Override
+        public void close() {
+            done.complete(null);
+            for (String deviceId : deviceIds) {
+                release(key(userId, deviceId));
+            }
+        }
+    }
+
+    private class Actor {
+        final Queue<FutureTask<?>> mailbox = new ConcurrentLinkedQueue<>();
+        final AtomicBoolean running = new AtomicBoolean();
+        final Device device = new Device();
+        // Guarded by the actors map
+        int references;
+        // Guarded by writeOrder
+        CompletableFuture<Void> lastWrite = CompletableFuture.completedFuture(null);
+
+        <T> T call(Mutation<T> mutation) throws Exception {
+            if (mailbox.isEmpty() && running.compareAndSet(false, true)) {
+                // Nothing else to wait for, run it right away without queueing
+                try {
+                    return mutation.apply(device);
+                } finally {
+                    running.set(false);
+                    drain();
+                }
+            }
+            queued.increment();
+            FutureTask<T> task = new FutureTask<>(() -> mutation.apply(device));
+            mailbox.add(task);
+            drain();
+            try {
+                return task.get();
+            } catch (InterruptedException e) {
+                task.cancel(false);
+                throw e;
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof Exception) {
+                    throw (Exception) e.getCause();
+                }
+                throw (Error) e.getCause();
+            }
+        }
+
+        private void drain() {
+            while (!mailbox.isEmpty() && running.compareAndSet(false, true)) {
+                try {
+                    Runnable task;
+                    while ((task = mailbox.poll()) != null) {
+                        task.run();
+                    }
+                } finally {
+                    running.set(false);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import com.google.actions.api.smarthome.ExecuteRequest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Validates and applies smart home commands to a device document. This only computes the new
+ * states and the field updates to persist, writing them is up to the {@link DeviceStore}.
+ *
+ * <p>Commands are dispatched to the {@link TraitCommand} registered for their id.
+ */
+public final class DeviceCommands {
+
+    private static final Map<String, TraitCommand> COMMANDS = new ConcurrentHashMap<>();
+
+    static {
+        // action.devices.traits.ArmDisarm
+        register(new TraitCommand("action.devices.commands.ArmDisarm", context -> {
+            Object isArmed = context.getState("isArmed");
+            if (context.hasParam("arm")) {
+                isArmed = context.getParam("arm");
+            } else if (context.hasParam("cancel")) {
+                // Cancel value is in relation to the arm value
+                isArmed = !(boolean) context.getParam("arm");
+            }
+            context.set("isArmed", isArmed);
+            if (context.hasParam("armLevel")) {
+                context.set("currentArmLevel", context.getParam("armLevel"));
+            }
+        }));
+
+        // action.devices.traits.Brightness
+        register(new TraitCommand("action.devices.commands.BrightnessAbsolute", context ->
+                context.set("brightness", context.getParam("brightness"))));
+
+        // action.devices.traits.CameraStream
+        register(new TraitCommand("action.devices.commands.GetCameraStream", context ->
+                context.report("cameraStreamAccessUrl", "https://fluffysheep.com/baaaaa.mp4")));
+
+        // action.devices.traits.ColorSetting
+        register(new TraitCommand("action.devices.commands.ColorAbsolute", context -> {
+            Map<String, Object> colorMap = (Map<String, Object>) context.getParam("color");
+            if (colorMap.containsKey("spectrumRGB")) {
+                context.write("color.spectrumRgb", colorMap.get("spectrumRGB"));
+                context.report("spectrumRgb", colorMap.get("spectrumRGB"));
+            } else if (colorMap.containsKey("spectrumHSV")) {
+                context.write("color.spectrumHsv", colorMap.get("spectrumHSV"));
+                context.report("spectrumHsv", colorMap.get("spectrumHSV"));
+            } else if (colorMap.containsKey("temperature")) {
+                context.write("color.temperatureK", colorMap.get("temperature"));
+                context.report("temperatureK", colorMap.get("temperature"));
+            } else {
+                throw new ErrorCodeException("notSupported");
+            }
+        }));
+
+        // action.devices.traits.Dock
+        register(new TraitCommand("action.devices.commands.Dock", context ->
+                // This has no parameters
+                context.set("isDocked", true)));
+
+        // action.devices.traits.FanSpeed
+        register(new TraitCommand("action.devices.commands.SetFanSpeed", context ->
+                context.set("currentFanSpeedSetting", context.getParam("fanSpeed"))));
+        register(new TraitCommand("action.devices.commands.Reverse", context ->
+                context.write("currentFanSpeedReverse", true)));
+
+        // action.devices.traits.Locator
+        register(new TraitCommand("action.devices.commands.Locate", context -> {
+            context.write("silent", context.getParam("silent"));
+            context.set("generatedAlert", true);
+        }));
+
+        // action.devices.traits.LockUnlock
+        register(new TraitCommand("action.devices.commands.LockUnlock", context ->
+                context.set("isLocked", context.getParam("lock"))));
+
+        // action.devices.traits.OnOff
+        register(new TraitCommand("action.devices.commands.OnOff", context ->
+                context.set("on", context.getParam("on"))));
+
+        // action.devices.traits.OpenClose
+        register(new TraitCommand("action.devices.commands.OpenClose", context -> {
+            // Check if the device can open in multiple directions
+            Map<String, Object> attributes =
+                    (Map<String, Object>) context.getDeviceField("attributes");
+            if (attributes != null && attributes.containsKey("openDirection")) {
+                // The device can open in more than one direction
+                Object direction = context.getParam("openDirection");
+                List<Map<String, Object>> openStates = new ArrayList<>();
+                for (Map<String, Object> state :
+                        (List<Map<String, Object>>) context.getState("openState")) {
+                    Map<String, Object> openState = new HashMap<>(state);
+                    if (openState.get("openDirection").equals(direction)) {
+                        openState.put("openPercent", context.getParam("openPercent"));
+                    }
+                    openStates.add(openState);
+                }
+                context.set("openState", openStates);
+            } else {
+                // The device can only open in one direction
+                context.set("openPercent", context.getParam("openPercent"));
+            }
+        }));
+
+        // action.devices.traits.RunCycle - No execution
+        // action.devices.traits.Scene
+        register(new TraitCommand("action.devices.commands.ActivateScene", context ->
+                // Scenes are stateless
+                context.write("deactivate", context.getParam("deactivate"))));
+
+        // action.devices.traits.StartStop
+        register(new TraitCommand("action.devices.commands.StartStop", context ->
+                context.set("isRunning", context.getParam("start"))));
+        register(new TraitCommand("action.devices.commands.PauseUnpause", context ->
+                context.set("isPaused", context.getParam("pause"))));
+
+        // action.devices.traits.Modes
+        register(new TraitCommand("action.devices.commands.SetModes", context ->
+                context.set("currentModeSettings", merge(context.getState("currentModeSettings"),
+                        context.getParam("updateModeSettings")))));
+
+        // action.devices.traits.Timer
+        register(new TraitCommand("action.devices.commands.TimerStart", context ->
+                context.set("timerRemainingSec", context.getParam("timerTimeSec"))));
+        register(new TraitCommand("action.devices.commands.TimerAdjust", context -> {
+            int newTimerRemainingSec = requireTimer(context)
+                    + ((Number) context.getParam("timerTimeSec")).intValue();
+            if (newTimerRemainingSec < 0) {
+                throw new ErrorCodeException("valueOutOfRange");
+            }
+            context.set("timerRemainingSec", newTimerRemainingSec);
+        }));
+        register(new TraitCommand("action.devices.commands.TimerPause", context -> {
+            requireTimer(context);
+            context.set("timerPaused", true);
+        }));
+        register(new TraitCommand("action.devices.commands.TimerResume", context -> {
+            requireTimer(context);
+            context.set("timerPaused", false);
+        }));
+        register(new TraitCommand("action.devices.commands.TimerCancel", context -> {
+            requireTimer(context);
+            context.write("timerRemainingSec", -1);
+            context.report("timerRemainingSec", 0);
+        }));
+
+        // action.devices.traits.Toggles
+        register(new TraitCommand("action.devices.commands.SetToggles", context ->
+                context.set("currentToggleSettings", merge(
+                        context.getState("currentToggleSettings"),
+                        context.getParam("updateToggleSettings")))));
+
+        // action.devices.traits.TemperatureControl
+        register(new TraitCommand("action.devices.commands.SetTemperature", context -> {
+            context.set("temperatureSetpointCelsius", context.getParam("temperature"));
+            context.report("temperatureAmbientCelsius",
+                    context.getState("temperatureAmbientCelsius"));
+        }));
+
+        // action.devices.traits.TemperatureSetting
+        register(new TraitCommand("action.devices.commands.ThermostatTemperatureSetpoint",
+                context -> {
+                    context.set("thermostatTemperatureSetpoint",
+                            context.getParam("thermostatTemperatureSetpoint"));
+                    reportThermostat(context, "thermostatMode");
+                }));
+        register(new TraitCommand("action.devices.commands.ThermostatTemperatureSetRange",
+                context -> {
+                    context.set("thermostatTemperatureSetpointLow",
+                            context.getParam("thermostatTemperatureSetpointLow"));
+                    context.set("thermostatTemperatureSetpointHigh",
+                            context.getParam("thermostatTemperatureSetpointHigh"));
+                    reportThermostat(context, "thermostatTemperatureSetpoint", "thermostatMode");
+                }));
+        register(new TraitCommand("action.devices.commands.ThermostatSetMode", context -> {
+            context.set("thermostatMode", context.getParam("thermostatMode"));
+            reportThermostat(context, "thermostatTemperatureSetpoint");
+        }));
+    }
+
+    private DeviceCommands() {
+    }
+
+    /** Registers the handler of a command, replacing any handler registered before. */
+    public static void register(TraitCommand command) {
+        COMMANDS.put(command.getCommand(), command);
+    }
+
+    public static TraitCommand get(String command) {
+        return COMMANDS.get(command);
+    }
+
+    /**
+     * Applies {@code execution} to {@code device}, which must not be modified.
+     *
+     * @param updates receives the fields to write, as dot-separated field paths
+     * @return the device states to report for the command
+     */
+    public static Map<String, Object> apply(Map<String, Object> device,
+            ExecuteRequest.Inputs.Payload.Commands.Execution execution,
+            Map<String, Object> updates) throws Exception {
+        CommandContext context = new CommandContext(device, execution, updates);
+
+        if (!(Boolean) context.getState("online")) {
+            throw new ErrorCodeException("deviceOffline");
+        }
+
+        String errorCode = (String) device.get("errorCode");
+        if (!errorCode.isEmpty()) {
+            throw new ErrorCodeException(errorCode);
+        }
+
+        String tfa = (String) device.get("tfa");
+        if (tfa.equals("ack") && execution.getChallenge() == null) {
+            throw new ErrorCodeException("ackNeeded");
+        } else if (!tfa.isEmpty() && execution.getChallenge() == null) {
+            throw new ErrorCodeException("pinNeeded");
+        } else if (!tfa.isEmpty() && execution.getChallenge() != null) {
+            String pin = (String) execution.getChallenge().get("pin");
+            if (pin != null && !pin.equals(tfa)) {
+                throw new ErrorCodeException("challengeFailedPinNeeded");
+            }
+        }
+
+        TraitCommand command = COMMANDS.get(execution.command);
+        if (command != null) {
+            long start = System.nanoTime();
+            try {
+                command.apply(context);
+            } finally {
+                Metrics.latency(Metrics.COMMAND_SECONDS, execution.command).recordSince(start);
+            }
+        }
+        return context.getStates();
+    }
+
+    private static int requireTimer(CommandContext context) throws ErrorCodeException {
+        int timerRemainingSec = ((Number) context.getState("timerRemainingSec")).intValue();
+        if (timerRemainingSec == -1) {
+            // No timer exists
+            throw new ErrorCodeException("noTimerExists");
+        }
+        return timerRemainingSec;
+    }
+
+    /** Returns a copy of the current settings with the updated ones applied. */
+    private static Map<String, Object> merge(Object currentSettings, Object updatedSettings) {
+        Map<String, Object> settings = new HashMap<>();
+        if (currentSettings != null) {
+            settings.putAll((Map<String, Object>) currentSettings);
+        }
+        if (updatedSettings != null) {
+            settings.putAll((Map<String, Object>) updatedSettings);
+        }
+        return settings;
+    }
+
+    /** Reports the current thermostat states that were not changed by the command. */
+    private static void reportThermostat(CommandContext context, String... unchanged) {
+        for (String name : unchanged) {
+            context.report(name, context.getState(name));
+        }
+        context.report("thermostatTemperatureAmbient",
+                context.getState("thermostatTemperatureAmbient"));
+        context.report("thermostatHumidityAmbient",
+                context.getState("thermostatHumidityAmbient"));
+    }
+}
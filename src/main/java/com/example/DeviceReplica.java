@@ -0,0 +1,342 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.DocumentChange;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.ListenerRegistration;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+import com.google.cloud.firestore.QuerySnapshot;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A local copy of the device collections of active users, kept up to date by Firestore snapshot
+ * listeners so that QUERY and EXECUTE do not have to read devices that did not change.
+ * Enable it with the {@code smarthome.replica} system property.
+ *
+ * <p>A listener is attached the first time a user's devices are read, and removed once they have
+ * not been read for {@code smarthome.replica.idleMillis}. A listener that fails is attached again
+ * after a growing delay. Until the first snapshot of a listener has arrived, and for a device
+ * written by this process until its writes have finished and a snapshot includes them, reads
+ * return null and the caller falls back to its other sources.
+ */
+public class DeviceReplica {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MySmartHomeApp.class);
+
+    private final Source source;
+    private final boolean enabled;
+    private final int maxUsers;
+    private final long idleMillis;
+    private final long retryMillis;
+    private final ConcurrentMap<String, UserReplica> users = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private ScheduledExecutorService scheduler;
+
+    public DeviceReplica(Firestore database) {
+        this(firestore(database), Boolean.getBoolean("smarthome.replica"),
+                Integer.getInteger("smarthome.replica.maxUsers", 1000),
+                Long.getLong("smarthome.replica.idleMillis", 10 * 60 * 1000L),
+                Long.getLong("smarthome.replica.retryMillis", 1000L));
+    }
+
+    DeviceReplica(Source source, boolean enabled, int maxUsers, long idleMillis,
+            long retryMillis) {
+        this.source = source;
+        this.enabled = enabled;
+        this.maxUsers = maxUsers;
+        this.idleMillis = idleMillis;
+        this.retryMillis = retryMillis;
+        if (enabled) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "device-replica");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long period = Math.min(idleMillis, 60 * 1000L);
+            scheduler.scheduleWithFixedDelay(this::evictIdleUsers, period, period,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /** Returns a device document, or null if the replica cannot tell whether it is current. */
+    public Map<String, Object> get(String userId, String deviceId) {
+        UserReplica user = user(userId);
+        if (user == null) {
+            return null;
+        }
+        Map<String, Object> device = user.isCurrent(deviceId) ? user.devices.get(deviceId) : null;
+        if (device == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return device;
+    }
+
+    /** Returns the documents of all devices of a user, or null if they are not replicated yet. */
+    public Map<String, Map<String, Object>> getDevices(String userId) {
+        UserReplica user = user(userId);
+        if (user == null || user.readTime == null) {
+            return null;
+        }
+        return new LinkedHashMap<>(user.devices);
+    }
+
+    /**
+     * Marks a device as being written, its replicated document is not used until this and every
+     * other write of the device has been. Each call must be followed by one of {@link #written}.
+     */
+    public void pending(String userId, String deviceId) {
+        UserReplica user = users.get(userId);
+        if (user != null) {
+            user.writes.compute(deviceId, (id, writes) -> writes == null
+                    ? new Writes(1, null) : new Writes(writes.inFlight + 1, writes.updateTime));
+        }
+    }
+
+    /**
+     * Records the outcome of a write of a device: the time the write was applied, or null if it
+     * failed and the replicated document is still current.
+     */
+    public void written(String userId, String deviceId, Timestamp updateTime) {
+        UserReplica user = users.get(userId);
+        if (user == null) {
+            return;
+        }
+        user.writes.compute(deviceId, (id, writes) -> {
+            // No pending write if the replica of the user was created while this one was running
+            int inFlight = writes == null ? 0 : Math.max(writes.inFlight - 1, 0);
+            Timestamp latest = writes == null ? null : writes.updateTime;
+            if (updateTime != null && (latest == null || updateTime.compareTo(latest) > 0)) {
+                latest = updateTime;
+            }
+            return inFlight == 0 && latest == null ? null : new Writes(inFlight, latest);
+        });
+    }
+
+    public int getUsers() {
+        return users.size();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /** Returns the replica of a user, attaching a listener if there is none yet. */
+    private UserReplica user(String userId) {
+        if (!enabled) {
+            return null;
+        }
+        UserReplica user = users.get(userId);
+        if (user == null) {
+            if (users.size() >= maxUsers) {
+                return null;
+            }
+            UserReplica created = new UserReplica();
+            user = users.putIfAbsent(userId, created);
+            if (user == null) {
+                user = created;
+                listen(userId, created);
+            }
+        }
+        user.lastAccess = System.currentTimeMillis();
+        return user;
+    }
+
+    private void listen(String userId, UserReplica user) {
+        synchronized (user) {
+            if (users.get(userId) != user) {
+                // Evicted in the meantime
+                return;
+            }
+            user.readTime = null;
+            user.registration = source.listen(userId,
+                    (snapshot, error) -> onEvent(userId, user, snapshot, error));
+        }
+    }
+
+    private void onEvent(String userId, UserReplica user, Snapshot snapshot, Exception error) {
+        if (error != null) {
+            long delay;
+            synchronized (user) {
+                user.readTime = null;
+                if (user.registration != null) {
+                    user.registration.remove();
+                    user.registration = null;
+                }
+                delay = Math.min(retryMillis << Math.min(user.failures++, 6), 60 * 1000L);
+            }
+            LOGGER.warn("device listener of user " + userId + " failed, attaching it again in "
+                    + delay + " ms", error);
+            scheduler.schedule(() -> listen(userId, user), delay, TimeUnit.MILLISECONDS);
+            return;
+        }
+        if (user.readTime == null) {
+            // The first snapshot of a listener has every device, replace whatever was there
+            user.devices.clear();
+            user.devices.putAll(snapshot.getDevices());
+        } else {
+            snapshot.getChanges().forEach((deviceId, device) -> {
+                if (device == null) {
+                    user.devices.remove(deviceId);
+                } else {
+                    user.devices.put(deviceId, device);
+                }
+            });
+        }
+        synchronized (user) {
+            user.failures = 0;
+        }
+        user.readTime = snapshot.getReadTime();
+    }
+
+    void evictIdleUsers() {
+        long idleSince = System.currentTimeMillis() - idleMillis;
+        Iterator<Map.Entry<String, UserReplica>> it = users.entrySet().iterator();
+        while (it.hasNext()) {
+            UserReplica user = it.next().getValue();
+            if (user.lastAccess < idleSince) {
+                it.remove();
+                synchronized (user) {
+                    if (user.registration != null) {
+                        user.registration.remove();
+                        user.registration = null;
+                    }
+                }
+            }
+        }
+    }
+
+    /** Attaches listeners to the device collections of users in Firestore. */
+    private static Source firestore(Firestore database) {
+        return (userId, listener) -> database.collection("users").document(userId)
+                .collection("devices")
+                .addSnapshotListener((snapshot, error) -> listener.onEvent(
+                        snapshot == null ? null : new FirestoreSnapshot(snapshot), error));
+    }
+
+    /** Where the devices of users are read from. */
+    interface Source {
+        /** Starts listening to the devices of a user. */
+        ListenerRegistration listen(String userId, Listener listener);
+    }
+
+    interface Listener {
+        /** Called with each snapshot of the devices, or with the error the listener failed with. */
+        void onEvent(Snapshot snapshot, Exception error);
+    }
+
+    interface Snapshot {
+        Timestamp getReadTime();
+
+        /** Returns the documents of all devices, keyed by device id. */
+        Map<String, Map<String, Object>> getDevices();
+
+        /** Returns the documents changed since the previous snapshot, null for removed ones. */
+        Map<String, Map<String, Object>> getChanges();
+    }
+
+    private static class FirestoreSnapshot implements Snapshot {
+        private final QuerySnapshot snapshot;
+
+        FirestoreSnapshot(QuerySnapshot snapshot) {
+            this.snapshot = snapshot;
+        }
+
+        @Override
+        public Timestamp getReadTime() {
+            return snapshot.getReadTime();
+        }
+
+        @Override
+        public Map<String, Map<String, Object>> getDevices() {
+            Map<String, Map<String, Object>> devices = new LinkedHashMap<>();
+            for (QueryDocumentSnapshot device : snapshot.getDocuments()) {
+                devices.put(device.getId(), device.getData());
+            }
+            return devices;
+        }
+
+        @Override
+        public Map<String, Map<String, Object>> getChanges() {
+            Map<String, Map<String, Object>> changes = new LinkedHashMap<>();
+            for (DocumentChange change : snapshot.getDocumentChanges()) {
+                QueryDocumentSnapshot device = change.getDocument();
+                changes.put(device.getId(),
+                        change.getType() == DocumentChange.Type.REMOVED ? null : device.getData());
+            }
+            return changes;
+        }
+    }
+
+    private static class UserReplica {
+        final ConcurrentMap<String, Map<String, Object>> devices = new ConcurrentHashMap<>();
+        // Devices written by this process that a snapshot may not include yet
+        final ConcurrentMap<String, Writes> writes = new ConcurrentHashMap<>();
+        // Time of the last snapshot applied, null until the listener has sent one
+        volatile Timestamp readTime;
+        volatile long lastAccess = System.currentTimeMillis();
+        // Guarded by this
+        ListenerRegistration registration;
+        int failures;
+
+        boolean isCurrent(String deviceId) {
+            Timestamp snapshotTime = readTime;
+            if (snapshotTime == null) {
+                return false;
+            }
+            Writes deviceWrites = writes.get(deviceId);
+            if (deviceWrites == null) {
+                return true;
+            }
+            if (deviceWrites.inFlight > 0 || (deviceWrites.updateTime != null
+                    && snapshotTime.compareTo(deviceWrites.updateTime) < 0)) {
+                return false;
+            }
+            writes.remove(deviceId, deviceWrites);
+            return true;
+        }
+    }
+
+    /** The writes of a device that are still running, and the time of the last one applied. */
+    private static class Writes {
+        final int inFlight;
+        final Timestamp updateTime;
+
+        Writes(int inFlight, Timestamp updateTime) {
+            this.inFlight = inFlight;
+            this.updateTime = updateTime;
+        }
+    }
+}
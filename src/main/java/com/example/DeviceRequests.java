@@ -0,0 +1,93 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.Map;
+
+/**
+ * Bodies of the {@code /smarthome/create}, {@code /smarthome/update} and
+ * {@code /smarthome/delete} calls made by the frontend, as parsed by {@link Json}.
+ */
+public final class DeviceRequests {
+
+    private DeviceRequests() {
+    }
+
+    public static class Create {
+        String userId;
+        Map<String, Object> data;
+
+        public String getUserId() {
+            return userId;
+        }
+
+        public Map<String, Object> getData() {
+            return data;
+        }
+    }
+
+    public static class Update {
+        String userId;
+        String deviceId;
+        String name;
+        String nickname;
+        Map<String, Object> states;
+        String errorCode;
+        String tfa;
+
+        public String getUserId() {
+            return userId;
+        }
+
+        public String getDeviceId() {
+            return deviceId;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getNickname() {
+            return nickname;
+        }
+
+        public Map<String, Object> getStates() {
+            return states;
+        }
+
+        public String getErrorCode() {
+            return errorCode;
+        }
+
+        public String getTfa() {
+            return tfa;
+        }
+    }
+
+    public static class Delete {
+        String userId;
+        String deviceId;
+
+        public String getUserId() {
+            return userId;
+        }
+
+        public String getDeviceId() {
+            return deviceId;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Write-through cache of device documents, keyed by user and device id.
+ *
+ * <p>Every write bumps a version number. A document read from the database is only cached if no
+ * write or invalidation of the same device happened while it was in flight, so a slow read can
+ * never overwrite newer data. Writes to devices that are not cached leave an empty entry holding
+ * the write's version for that. Cached documents are shared and must be treated as read-only by
+ * callers.
+ */
+public class DeviceStateCache {
+
+    private final int maxSize;
+    private final long ttlMillis;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final LinkedHashMap<String, CachedDevice> devices;
+    private long version;
+    // Reads that started before this version may have missed a write to an entry that has since
+    // been evicted or expired, and are not cached
+    private long minLoadVersion;
+
+    public DeviceStateCache(final int maxSize, long ttlMillis) {
+        this.maxSize = maxSize;
+        this.ttlMillis = ttlMillis;
+        this.devices = new LinkedHashMap<String, CachedDevice>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedDevice> eldest) {
+                if (size() <= DeviceStateCache.this.maxSize) {
+                    return false;
+                }
+                forget(eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    public synchronized CachedDevice get(String userId, String deviceId) {
+        String key = key(userId, deviceId);
+        CachedDevice device = devices.get(key);
+        if (device != null && device.loadedAt + ttlMillis <= System.currentTimeMillis()) {
+            devices.remove(key);
+            forget(device);
+            device = null;
+        } else if (device != null && device.data == null) {
+            // Written or invalidated while not cached, read it again
+            device = null;
+        }
+        if (device == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return device;
+    }
+
+    /** Returns the version to pass to {@link #load} for a read that is about to start. */
+    public synchronized long beginLoad() {
+        return version;
+    }
+
+    /** Caches a document that was read from the database, unless it may be stale. */
+    public synchronized void load(String userId, String deviceId, Map<String, Object> data,
+            long loadVersion) {
+        if (data == null || loadVersion < minLoadVersion) {
+            return;
+        }
+        String key = key(userId, deviceId);
+        CachedDevice current = devices.get(key);
+        if (current != null && current.version > loadVersion) {
+            return;
+        }
+        devices.put(key, new CachedDevice(data, loadVersion));
+    }
+
+    /** Replaces the whole document, e.g. when a device is created. */
+    public synchronized void put(String userId, String deviceId, Map<String, Object> data) {
+        devices.put(key(userId, deviceId), new CachedDevice(data, ++version));
+    }
+
+    /**
+     * Applies a set of field updates to a cached document. Keys are dot-separated field paths,
+     * exactly as passed to Firestore's {@code update()}.
+     */
+    public synchronized void update(String userId, String deviceId, Map<String, Object> fields) {
+        String key = key(userId, deviceId);
+        CachedDevice current = devices.get(key);
+        if (current == null || current.data == null) {
+            // Nothing to update in place, make sure an in-flight read does not cache old data
+            devices.put(key, new CachedDevice(null, ++version));
+            return;
+        }
+        devices.put(key, new CachedDevice(withFields(current.data, fields), ++version));
+    }
+
+    public synchronized void invalidate(String userId, String deviceId) {
+        devices.put(key(userId, deviceId), new CachedDevice(null, ++version));
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /** Returns a copy of {@code data} with a set of field updates applied. */
+    static Map<String, Object> withFields(Map<String, Object> data, Map<String, Object> fields) {
+        Map<String, Object> updated = new HashMap<>(data);
+        for (Map.Entry<String, Object> field : fields.entrySet()) {
+            applyField(updated, field.getKey(), field.getValue());
+        }
+        return updated;
+    }
+
+    /** Returns the value at a dotted field path, or null if there is none. */
+    @SuppressWarnings("unchecked")
+    static Object getField(Map<String, Object> data, String fieldPath) {
+        Object value = data;
+        for (String segment : fieldPath.split("\\.")) {
+            if (!(value instanceof Map)) {
+                return null;
+            }
+            value = ((Map<String, Object>) value).get(segment);
+        }
+        return value;
+    }
+
+    /** Sets a dotted field path, copying nested maps on the way so cached data stays untouched. */
+    @SuppressWarnings("unchecked")
+    static void applyField(Map<String, Object> data, String fieldPath, Object value) {
+        String[] segments = fieldPath.split("\\.");
+        Map<String, Object> parent = data;
+        for (int i = 0; i < segments.length - 1; i++) {
+            Object child = parent.get(segments[i]);
+            Map<String, Object> copy = child instanceof Map
+                    ? new HashMap<>((Map<String, Object>) child)
+                    : new HashMap<>();
+            parent.put(segments[i], copy);
+            parent = copy;
+        }
+        parent.put(segments[segments.length - 1], value);
+    }
+
+    private void forget(CachedDevice device) {
+        minLoadVersion = Math.max(minLoadVersion, device.version);
+    }
+
+    private static String key(String userId, String deviceId) {
+        return userId + '/' + deviceId;
+    }
+
+    public static class CachedDevice {
+        private final Map<String, Object> data;
+        private final long version;
+        private final long loadedAt = System.currentTimeMillis();
+
+        CachedDevice(Map<String, Object> data, long version) {
+            this.data = data;
+            this.version = version;
+        }
+
+        public Map<String, Object> getData() {
+            return data;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import com.google.actions.api.smarthome.ExecuteRequest;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Storage of users and their devices used by the fulfillment. {@link MyDataStore} keeps them in
+ * Firestore, {@link InMemoryDeviceStore} in the memory of a single process.
+ *
+ * <p>Set the {@code smarthome.store} system property to {@code memory} to use the in-memory
+ * store.
+ */
+public interface DeviceStore {
+
+    // Firestore rejects batches with more than 500 writes
+    int MAX_BATCH_WRITES = 500;
+
+    /**
+     * Returns the store of the {@link SmartHomeContext}.
+     *
+     * @throws IllegalStateException if it could not be created, e.g. without credentials. The next
+     *     call tries again.
+     */
+    static DeviceStore getInstance() {
+        return SmartHomeContext.getInstance().getStore();
+    }
+
+    String getUserId(String token) throws ExecutionException, InterruptedException;
+
+    /** Drops any cached user for an access token, e.g. after the token has been rotated. */
+    void invalidateToken(String accessToken);
+
+    /** Drops any cached access token that resolves to {@code userId}. */
+    void invalidateUser(String userId);
+
+    Boolean isHomegraphEnabled(String userId) throws ExecutionException, InterruptedException;
+
+    void setHomegraph(String userId, Boolean enable);
+
+    /**
+     * Returns the documents of all devices of a user, keyed by device id.
+     *
+     * @throws ExecutionException if they could not be read. An empty map always means the user has
+     *     no devices.
+     */
+    Map<String, Map<String, Object>> getDevices(String userId)
+            throws ExecutionException, InterruptedException;
+
+    void updateDevice(String userId, String deviceId, String deviceName,
+            String deviceNickname, Map<String, Object> states, String errorCode, String tfa);
+
+    void addDevice(String userId, Map<String, Object> data);
+
+    /**
+     * Adds several devices of a user with a single write. The device id of each device is taken
+     * from its {@code deviceId} field.
+     *
+     * @param devices at most {@link #MAX_BATCH_WRITES} devices
+     * @return completes once all devices have been written, or fails if none were
+     */
+    CompletableFuture<Void> addDevices(String userId, List<Map<String, Object>> devices);
+
+    void deleteDevice(String userId, String deviceId);
+
+    Map<String, Object> getState(String userId, String deviceId)
+            throws ExecutionException, InterruptedException;
+
+    /**
+     * Returns the states of several devices, keyed by device id. Devices that do not exist are
+     * left out of the result.
+     */
+    Map<String, Map<String, Object>> getStates(String userId, List<String> deviceIds)
+            throws ExecutionException, InterruptedException;
+
+    Map<String, Object> execute(String userId, String deviceId,
+            ExecuteRequest.Inputs.Payload.Commands.Execution execution) throws Exception;
+
+    /**
+     * Executes a command on a device. If {@code batch} is given the resulting writes are only
+     * collected in it and must be committed with {@link #commit(ExecuteBatch)}, otherwise they are
+     * written right away.
+     */
+    Map<String, Object> execute(String userId, String deviceId,
+            ExecuteRequest.Inputs.Payload.Commands.Execution execution, ExecuteBatch batch)
+            throws Exception;
+
+    /**
+     * Writes every update collected in {@code batch}.
+     *
+     * @return the error code of every device whose write failed, keyed by device id
+     */
+    Map<String, String> commit(ExecuteBatch batch) throws InterruptedException;
+}
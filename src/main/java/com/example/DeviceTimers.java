@@ -0,0 +1,205 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Counts down the timers of devices with the Timer trait. The stored {@code timerRemainingSec} is
+ * only written when a command changes a timer and when it expires; in between the remaining time
+ * is computed from the deadline on demand. Deadlines are kept in a {@link TimingWheel}, so
+ * thousands of running timers cost a single thread.
+ *
+ * <p>Timers are only counted down while this process runs; after a restart a device reports the
+ * time that was left at its last command until the next command.
+ */
+public class DeviceTimers {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MySmartHomeApp.class);
+
+    /** The field updates that mark a device's timer as complete. */
+    public static final Map<String, Object> EXPIRED_FIELDS;
+
+    static {
+        Map<String, Object> fields = new LinkedHashMap<>();
+        fields.put("states.timerRemainingSec", -1);
+        fields.put("states.timerPaused", false);
+        EXPIRED_FIELDS = fields;
+    }
+
+    private final TimingWheel wheel = new TimingWheel("device-timers",
+            Long.getLong("smarthome.timers.tickMillis", 100L), TimeUnit.MILLISECONDS, 512);
+    private final ConcurrentMap<String, Timer> timers = new ConcurrentHashMap<>();
+    private final ExpiryListener listener;
+    private ExecutorService expiries;
+
+    public DeviceTimers(ExpiryListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Returns true if field updates written by a command change the timer of a device, so that
+     * {@link #update} has to be called with the new states.
+     */
+    public static boolean changesTimer(Map<String, Object> updates) {
+        return updates.containsKey("states.timerRemainingSec")
+                || updates.containsKey("states.timerPaused");
+    }
+
+    /**
+     * Adds the time left on the timer of {@code device} to {@code updates}, unless the command
+     * has set it, so it is written with every change of the timer, and returns the states the
+     * device has after the updates.
+     *
+     * @param device the device with the time left on its timer, see {@link #withRemainingInDevice}
+     */
+    public static Map<String, Object> withTimeLeft(Map<String, Object> device,
+            Map<String, Object> updates) {
+        Object remaining = DeviceStateCache.getField(device, "states.timerRemainingSec");
+        if (remaining != null) {
+            updates.putIfAbsent("states.timerRemainingSec", remaining);
+        }
+        return (Map<String, Object>) DeviceStateCache.withFields(device, updates).get("states");
+    }
+
+    /**
+     * Tracks the timer state a command has left a device in. Called from the device's
+     * {@link DeviceActors actor}, like the expiry listener, so the two never interleave.
+     */
+    public void update(String userId, String deviceId, Map<String, Object> states) {
+        String key = key(userId, deviceId);
+        Object remaining = states.get("timerRemainingSec");
+        int remainingSec = remaining instanceof Number ? ((Number) remaining).intValue() : -1;
+        Timer timer = remainingSec < 0 ? null
+                : new Timer(userId, deviceId, remainingSec,
+                        Boolean.TRUE.equals(states.get("timerPaused")));
+        Timer previous = timer == null ? timers.remove(key) : timers.put(key, timer);
+        if (previous != null && previous.timeout != null) {
+            previous.timeout.cancel();
+        }
+    }
+
+    /**
+     * Returns {@code states} with the remaining time of the device's timer, or {@code states}
+     * itself if no timer of the device is tracked.
+     */
+    public Map<String, Object> withRemaining(String userId, String deviceId,
+            Map<String, Object> states) {
+        if (timers.isEmpty()) {
+            return states;
+        }
+        Timer timer = timers.get(key(userId, deviceId));
+        if (timer == null) {
+            return states;
+        }
+        Map<String, Object> current = new HashMap<>(states);
+        current.put("timerRemainingSec", timer.getRemainingSec());
+        return current;
+    }
+
+    /** Returns {@code device} with the remaining time of its timer in its states. */
+    public Map<String, Object> withRemainingInDevice(String userId, String deviceId,
+            Map<String, Object> device) {
+        Map<String, Object> states = (Map<String, Object>) device.get("states");
+        if (states == null) {
+            return device;
+        }
+        Map<String, Object> current = withRemaining(userId, deviceId, states);
+        if (current == states) {
+            return device;
+        }
+        Map<String, Object> updated = new HashMap<>(device);
+        updated.put("states", current);
+        return updated;
+    }
+
+    public int getRunning() {
+        return wheel.getPending();
+    }
+
+    private void expire(Timer timer) {
+        // Writing the device may block, keep it off the wheel's thread
+        executor().execute(() -> {
+            try {
+                listener.expired(timer.userId, timer.deviceId, () ->
+                        timers.remove(key(timer.userId, timer.deviceId), timer));
+            } catch (Exception e) {
+                LOGGER.error("failed to complete the timer of device " + timer.deviceId, e);
+            }
+        });
+    }
+
+    private synchronized ExecutorService executor() {
+        if (expiries == null) {
+            expiries = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "device-timers-expiry");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return expiries;
+    }
+
+    private static String key(String userId, String deviceId) {
+        return userId + '/' + deviceId;
+    }
+
+    public interface ExpiryListener {
+        /**
+         * Called once a timer has run out. {@code expiry} returns false if the timer has been
+         * changed by a command in the meantime, it must be checked before writing the device.
+         */
+        void expired(String userId, String deviceId, Expiry expiry) throws Exception;
+    }
+
+    public interface Expiry {
+        boolean complete();
+    }
+
+    private class Timer {
+        final String userId;
+        final String deviceId;
+        // Remaining seconds while paused
+        final int pausedSec;
+        final TimingWheel.Timeout timeout;
+
+        Timer(String userId, String deviceId, int remainingSec, boolean paused) {
+            this.userId = userId;
+            this.deviceId = deviceId;
+            this.pausedSec = remainingSec;
+            this.timeout = paused ? null
+                    : wheel.schedule(() -> expire(this), remainingSec, TimeUnit.SECONDS);
+        }
+
+        int getRemainingSec() {
+            if (timeout == null) {
+                return pausedSec;
+            }
+            long remainingMillis = timeout.getDelay(TimeUnit.MILLISECONDS);
+            return remainingMillis <= 0 ? 0 : (int) ((remainingMillis + 999) / 1000);
+        }
+    }
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+/**
+ * Thrown when a command cannot be executed for a device, with the error code returned to Google
+ * for it, e.g. {@code deviceOffline} or {@code pinNeeded}.
+ */
+public class ErrorCodeException extends Exception {
+
+    public ErrorCodeException(String errorCode) {
+        super(errorCode);
+    }
+
+    public String getErrorCode() {
+        return getMessage();
+    }
+}
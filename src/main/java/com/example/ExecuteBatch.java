@@ -0,0 +1,62 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Collects the field updates of every device targeted by one EXECUTE request, so they can be
+ * committed together instead of being written one by one. Updates to the same device are merged,
+ * later values win. The commands themselves have already been applied to the device, see
+ * {@link DeviceActors}.
+ */
+public class ExecuteBatch {
+
+    private final String userId;
+    private final Map<String, Map<String, Object>> updates = new LinkedHashMap<>();
+
+    public ExecuteBatch(String userId) {
+        this.userId = userId;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    /** Adds updates of a device, returns true if it had none in this batch yet. */
+    public synchronized boolean add(String deviceId, Map<String, Object> fields) {
+        Map<String, Object> deviceUpdates = updates.get(deviceId);
+        boolean first = deviceUpdates == null;
+        if (first) {
+            deviceUpdates = new LinkedHashMap<>();
+            updates.put(deviceId, deviceUpdates);
+        }
+        deviceUpdates.putAll(fields);
+        return first;
+    }
+
+    public synchronized Map<String, Map<String, Object>> getUpdates() {
+        Map<String, Map<String, Object>> copy = new LinkedHashMap<>();
+        updates.forEach((deviceId, fields) -> copy.put(deviceId, new LinkedHashMap<>(fields)));
+        return copy;
+    }
+
+    public synchronized boolean isEmpty() {
+        return updates.isEmpty();
+    }
+}
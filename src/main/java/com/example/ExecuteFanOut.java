@@ -0,0 +1,145 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the per-device work of one request concurrently on a bounded pool of threads. Tasks that
+ * share a key, i.e. target the same device, run one after another in the order they were given;
+ * tasks for different devices run in parallel.
+ *
+ * <p>Use {@link Threading#newFanOut} to get the implementation for the configured kind of threads.
+ */
+public class ExecuteFanOut {
+
+    private final ThreadPoolExecutor executor;
+
+    /** For subclasses that run the tasks on threads of their own. */
+    protected ExecuteFanOut() {
+        this.executor = null;
+    }
+
+    public ExecuteFanOut(int threads) {
+        AtomicInteger count = new AtomicInteger();
+        ThreadFactory threadFactory = runnable -> {
+            Thread thread = new Thread(runnable, "execute-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        // Once every thread is busy and the queue is full the request thread runs the work itself
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(threads * 4), threadFactory,
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Runs {@code task} for every index of {@code keys} and returns the outcomes in the same
+     * order.
+     */
+    public <T> List<Outcome<T>> run(List<String> keys, IndexedTask<T> task)
+            throws InterruptedException {
+        Map<String, List<Integer>> groups = groupByKey(keys);
+        List<Outcome<T>> outcomes = newOutcomes(keys.size());
+
+        if (groups.size() == 1) {
+            // Nothing to run in parallel, avoid handing off to another thread
+            runGroup(groups.values().iterator().next(), task, outcomes);
+            return outcomes;
+        }
+        List<Future<?>> futures = new ArrayList<>();
+        for (List<Integer> group : groups.values()) {
+            futures.add(executor.submit(() -> runGroup(group, task, outcomes)));
+        }
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                // runGroup records every failure in its outcomes
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+        return outcomes;
+    }
+
+    /** Returns the indexes of {@code keys}, grouped by key in order of first appearance. */
+    protected static Map<String, List<Integer>> groupByKey(List<String> keys) {
+        Map<String, List<Integer>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < keys.size(); i++) {
+            groups.computeIfAbsent(keys.get(i), key -> new ArrayList<>()).add(i);
+        }
+        return groups;
+    }
+
+    protected static <T> List<Outcome<T>> newOutcomes(int size) {
+        List<Outcome<T>> outcomes = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            outcomes.add(null);
+        }
+        return outcomes;
+    }
+
+    /** Runs the tasks of one group one after another, recording every outcome. */
+    protected static <T> void runGroup(List<Integer> group, IndexedTask<T> task,
+            List<Outcome<T>> outcomes) {
+        for (int index : group) {
+            Outcome<T> outcome;
+            try {
+                outcome = new Outcome<>(task.call(index), null);
+            } catch (Exception e) {
+                outcome = new Outcome<>(null, e);
+            }
+            synchronized (outcomes) {
+                outcomes.set(index, outcome);
+            }
+        }
+    }
+
+    public interface IndexedTask<T> {
+        T call(int index) throws Exception;
+    }
+
+    public static class Outcome<T> {
+        private final T value;
+        private final Exception error;
+
+        Outcome(T value, Exception error) {
+            this.value = value;
+            this.error = error;
+        }
+
+        public T getValue() {
+            return value;
+        }
+
+        /** Returns the exception thrown by the task, or null if it succeeded. */
+        public Exception getError() {
+            return error;
+        }
+    }
+}
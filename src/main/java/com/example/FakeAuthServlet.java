@@ -22,7 +22,6 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.net.URLDecoder;
-import java.util.stream.Collectors;
 
 // With @WebServlet annotation the webapp/WEB-INF/web.xml is no longer required.
 @WebServlet(name = "auth", description = "Requests: Trivial request", urlPatterns = "/fakeauth")
@@ -42,7 +41,6 @@ public class FakeAuthServlet extends HttpServlet {
 
     @Override
     protected void doPost(HttpServletRequest req, HttpServletResponse res) throws IOException {
-        String body = req.getReader().lines().collect(Collectors.joining());
         res.setContentType("text/plain");
         res.getWriter().println("/fakeauth should be a GET");
     }
@@ -26,6 +26,8 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
 
 // With @WebServlet annotation the webapp/WEB-INF/web.xml is no longer required.
 @WebServlet(name = "tokem", description = "Requests: Trivial request", urlPatterns = "/faketoken")
@@ -33,6 +35,7 @@ public class FakeTokenServlet extends HttpServlet {
 
     private static final Logger LOG = LoggerFactory.getLogger(MySmartHomeApp.class);
     private static int secondsInDay = 86400;
+    private static final String ACCESS_TOKEN = "123access";
 
     @Override
     protected void doGet(HttpServletRequest req, HttpServletResponse res) throws IOException {
@@ -42,23 +45,32 @@ public class FakeTokenServlet extends HttpServlet {
 
     @Override
     protected void doPost(HttpServletRequest req, HttpServletResponse res) throws IOException {
+        long start = System.nanoTime();
         String grantType = req.getParameter("grant_type");
 
         JsonObject jsonRes = new JsonObject();
         jsonRes.addProperty("token_type", "bearer");
-        jsonRes.addProperty("access_token", "123access");
+        jsonRes.addProperty("access_token", ACCESS_TOKEN);
         jsonRes.addProperty("expires_in", secondsInDay);
         if (grantType.equals("authorization_code")) {
             jsonRes.addProperty("refresh_token", "123refresh");
+        } else if (grantType.equals("refresh_token")) {
+            // The access token is being rotated, forget the user it used to resolve to
+            DeviceStore.getInstance().invalidateToken(ACCESS_TOKEN);
         }
         res.setStatus(HttpServletResponse.SC_OK);
         res.setContentType("application/json");
         try {
-            System.out.println("response = " + jsonRes.toString());
             res.getWriter().write(jsonRes.toString());
             res.getWriter().flush();
         } catch (IOException e) {
-            e.printStackTrace();
+            LOG.error("failed to write token response", e);
+        }
+        if (RequestLog.isSampled(RequestLog.TOKEN)) {
+            // Only the grant type, the other parameters are codes and secrets
+            Map<String, String> request = new HashMap<>();
+            request.put("grant_type", grantType);
+            RequestLog.log(RequestLog.TOKEN, request, jsonRes.toString(), start);
         }
 
     }
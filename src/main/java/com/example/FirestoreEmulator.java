@@ -0,0 +1,54 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import com.google.api.gax.core.NoCredentialsProvider;
+import com.google.api.gax.grpc.GrpcTransportChannel;
+import com.google.api.gax.rpc.FixedTransportChannelProvider;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.FirestoreOptions;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+
+/**
+ * Connects to a local Firestore emulator instead of Cloud Firestore, e.g. for load tests. The
+ * emulator is used when the {@code smarthome.firestore.emulatorHost} system property or the
+ * {@code FIRESTORE_EMULATOR_HOST} environment variable is set to its {@code host:port}.
+ */
+public final class FirestoreEmulator {
+
+    private FirestoreEmulator() {
+    }
+
+    /** Returns the {@code host:port} of the emulator to use, or null to use Cloud Firestore. */
+    public static String getHost() {
+        String host = System.getProperty("smarthome.firestore.emulatorHost");
+        return host != null ? host : System.getenv("FIRESTORE_EMULATOR_HOST");
+    }
+
+    public static Firestore connect(String host, String projectId) {
+        // The emulator speaks plaintext gRPC and accepts any caller
+        ManagedChannel channel = ManagedChannelBuilder.forTarget(host).usePlaintext().build();
+        return FirestoreOptions.newBuilder()
+                .setProjectId(projectId)
+                .setChannelProvider(
+                        FixedTransportChannelProvider.create(GrpcTransportChannel.create(channel)))
+                .setCredentialsProvider(NoCredentialsProvider.create())
+                .build()
+                .getService();
+    }
+}
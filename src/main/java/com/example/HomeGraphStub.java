@@ -0,0 +1,61 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import com.google.home.graph.v1.HomeGraphApiServiceProto;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stands in for the Home Graph API during load tests, so that no Report State or Request Sync
+ * call leaves the machine. Every call only waits for a fixed latency.
+ *
+ * <p>Enabled with the {@code smarthome.homegraph=stub} system property; the latency is set with
+ * {@code smarthome.homegraph.stubLatencyMillis}.
+ */
+public class HomeGraphStub {
+
+    private final long latencyMillis;
+    private final AtomicLong reportStateCalls = new AtomicLong();
+    private final AtomicLong requestSyncCalls = new AtomicLong();
+
+    public HomeGraphStub(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    public static boolean isEnabled() {
+        return "stub".equals(System.getProperty("smarthome.homegraph"));
+    }
+
+    public void reportState(HomeGraphApiServiceProto.ReportStateAndNotificationRequest request)
+            throws InterruptedException {
+        reportStateCalls.incrementAndGet();
+        Thread.sleep(latencyMillis);
+    }
+
+    public void requestSync(String agentUserId) throws InterruptedException {
+        requestSyncCalls.incrementAndGet();
+        Thread.sleep(latencyMillis);
+    }
+
+    public long getReportStateCalls() {
+        return reportStateCalls.get();
+    }
+
+    public long getRequestSyncCalls() {
+        return requestSyncCalls.get();
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import com.google.actions.api.smarthome.ExecuteRequest;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * A {@link DeviceStore} that keeps everything in the memory of this process, for local load tests
+ * and single-node deployments. Device documents are immutable and replaced atomically on every
+ * write, so reads never block.
+ */
+public class InMemoryDeviceStore implements DeviceStore {
+
+    private final ConcurrentMap<String, String> userIdsByToken = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, User> users = new ConcurrentHashMap<>();
+    private final DeviceActors actors = new DeviceActors();
+    private final DeviceTimers timers = new DeviceTimers(this::expireTimer);
+
+    /** Returns a store with the default user described in the README. */
+    public static InMemoryDeviceStore withDefaultUser() {
+        InMemoryDeviceStore store = new InMemoryDeviceStore();
+        store.addUser("1234", "123access");
+        return store;
+    }
+
+    public void addUser(String userId, String accessToken) {
+        users.putIfAbsent(userId, new User());
+        userIdsByToken.put(accessToken, userId);
+    }
+
+    @Override
+    public String getUserId(String token) {
+        if (token == null) {
+            token = "Bearer 123access";
+        }
+        String userId = userIdsByToken.get(token.substring(7));
+        if (userId == null) {
+            throw new IllegalArgumentException("no user found!");
+        }
+        return userId;
+    }
+
+    @Override
+    public void invalidateToken(String accessToken) {
+        // Tokens are never cached, they are always resolved from the same map
+    }
+
+    @Override
+    public void invalidateUser(String userId) {
+    }
+
+    @Override
+    public Boolean isHomegraphEnabled(String userId) {
+        return user(userId).homegraph;
+    }
+
+    @Override
+    public void setHomegraph(String userId, Boolean enable) {
+        user(userId).homegraph = enable;
+    }
+
+    @Override
+    public Map<String, Map<String, Object>> getDevices(String userId) {
+        return new LinkedHashMap<>(user(userId).devices);
+    }
+
+    @Override
+    public void updateDevice(String userId, String deviceId, String deviceName,
+            String deviceNickname, Map<String, Object> states, String errorCode, String tfa) {
+        Map<String, Object> fields = new HashMap<>();
+        if (deviceName != null) {
+            fields.put("name", deviceName);
+        }
+        if (deviceNickname != null) {
+            fields.put("nickname", deviceNickname);
+        }
+        if (states != null) {
+            fields.put("states", states);
+        }
+        if (errorCode != null) {
+            fields.put("errorCode", errorCode);
+        }
+        if (tfa != null) {
+            fields.put("tfa", tfa);
+        }
+        if (fields.isEmpty()) {
+            return;
+        }
+        // Applied like a command, so it is ordered with the commands to the device and starts or
+        // cancels its timer the same way MyDataStore does
+        try {
+            actors.call(userId, deviceId, actor -> {
+                if (update(userId, deviceId, fields) && states != null) {
+                    timers.update(userId, deviceId, states);
+                }
+                return null;
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            // Only the mailbox of the device can fail, and it just runs our own code
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void addDevice(String userId, Map<String, Object> data) {
+        String deviceId = (String) data.get("deviceId");
+        user(userId).devices.put(deviceId, Collections.unmodifiableMap(new HashMap<>(data)));
+    }
+
+    @Override
+    public CompletableFuture<Void> addDevices(String userId, List<Map<String, Object>> devices) {
+        for (Map<String, Object> data : devices) {
+            addDevice(userId, data);
+        }
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public void deleteDevice(String userId, String deviceId) {
+        user(userId).devices.remove(deviceId);
+    }
+
+    @Override
+    public Map<String, Object> getState(String userId, String deviceId) {
+        Map<String, Object> device = user(userId).devices.get(deviceId);
+        Map<String, Object> states =
+                device == null ? null : (Map<String, Object>) device.get("states");
+        return states == null ? null : timers.withRemaining(userId, deviceId, states);
+    }
+
+    @Override
+    public Map<String, Map<String, Object>> getStates(String userId, List<String> deviceIds) {
+        Map<String, Map<String, Object>> states = new LinkedHashMap<>();
+        Map<String, Map<String, Object>> devices = user(userId).devices;
+        for (String deviceId : deviceIds) {
+            Map<String, Object> device = devices.get(deviceId);
+            if (device != null) {
+                Map<String, Object> deviceStates = (Map<String, Object>) device.get("states");
+                states.put(deviceId, deviceStates == null ? new HashMap<>()
+                        : timers.withRemaining(userId, deviceId, deviceStates));
+            }
+        }
+        return states;
+    }
+
+    @Override
+    public Map<String, Object> execute(String userId, String deviceId,
+            ExecuteRequest.Inputs.Payload.Commands.Execution execution) throws Exception {
+        return execute(userId, deviceId, execution, null);
+    }
+
+    @Override
+    public Map<String, Object> execute(String userId, String deviceId,
+            ExecuteRequest.Inputs.Payload.Commands.Execution execution, ExecuteBatch batch)
+            throws Exception {
+        // The stored documents are authoritative, so commands are applied to them right away and
+        // nothing is left for the batch to commit
+        return actors.call(userId, deviceId, actor -> {
+            Map<String, Object> device = user(userId).devices.get(deviceId);
+            if (device == null) {
+                throw new ErrorCodeException("deviceNotFound");
+            }
+            device = timers.withRemainingInDevice(userId, deviceId, device);
+            Map<String, Object> updates = new LinkedHashMap<>();
+            Map<String, Object> states = DeviceCommands.apply(device, execution, updates);
+            if (DeviceTimers.changesTimer(updates)) {
+                timers.update(userId, deviceId, DeviceTimers.withTimeLeft(device, updates));
+            }
+            if (!updates.isEmpty()) {
+                update(userId, deviceId, updates);
+            }
+            return states;
+        });
+    }
+
+    /** Writes the completion state of a timer that has run out, nothing is reported. */
+    private void expireTimer(String userId, String deviceId, DeviceTimers.Expiry expiry)
+            throws Exception {
+        actors.call(userId, deviceId, actor -> {
+            if (expiry.complete()) {
+                update(userId, deviceId, DeviceTimers.EXPIRED_FIELDS);
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public Map<String, String> commit(ExecuteBatch batch) {
+        Map<String, String> failures = new LinkedHashMap<>();
+        batch.getUpdates().forEach((deviceId, fields) -> {
+            if (!update(batch.getUserId(), deviceId, fields)) {
+                failures.put(deviceId, "deviceNotFound");
+            }
+        });
+        return failures;
+    }
+
+    /** Applies field updates to an existing device, returns false if there is no such device. */
+    private boolean update(String userId, String deviceId, Map<String, Object> fields) {
+        return user(userId).devices.computeIfPresent(deviceId, (id, device) ->
+                Collections.unmodifiableMap(DeviceStateCache.withFields(device, fields))) != null;
+    }
+
+    private User user(String userId) {
+        return users.computeIfAbsent(userId, id -> new User());
+    }
+
+    private static class User {
+        volatile Boolean homegraph = false;
+        // Sorted by id, like the documents of a Firestore collection
+        final ConcurrentNavigableMap<String, Map<String, Object>> devices =
+                new ConcurrentSkipListMap<>();
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The JSON configuration shared by all servlets. Request bodies are parsed straight from the
+ * request stream into typed objects and responses are written straight to the response stream,
+ * without building an intermediate String.
+ */
+public final class Json {
+
+    /** Thread-safe and meant to be reused, creating a Gson is comparatively expensive. */
+    public static final Gson GSON = new GsonBuilder().disableHtmlEscaping().create();
+
+    private Json() {
+    }
+
+    /** Parses the request body into a {@code type}, failing if the body is empty. */
+    public static <T> T read(HttpServletRequest req, Class<T> type) throws IOException {
+        try (Reader reader = reader(req)) {
+            T value = GSON.fromJson(reader, type);
+            if (value == null) {
+                throw new JsonParseException("empty request body");
+            }
+            return value;
+        }
+    }
+
+    /** Returns a reader over the request body, decoded as UTF-8 unless the request says so. */
+    public static Reader reader(HttpServletRequest req) throws IOException {
+        String encoding = req.getCharacterEncoding();
+        return encoding == null
+                ? new InputStreamReader(req.getInputStream(), StandardCharsets.UTF_8)
+                : new InputStreamReader(req.getInputStream(), encoding);
+    }
+
+    /** Writes {@code value} as the JSON response body. */
+    public static void write(HttpServletResponse res, Object value) throws IOException {
+        res.setContentType("application/json");
+        res.setCharacterEncoding("UTF-8");
+        Writer writer = new OutputStreamWriter(res.getOutputStream(), StandardCharsets.UTF_8);
+        GSON.toJson(value, writer);
+        writer.flush();
+    }
+}
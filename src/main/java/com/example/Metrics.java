@@ -0,0 +1,187 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import com.google.api.core.ApiFuture;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Latency histograms, counters and gauges of this instance, served in the Prometheus text format
+ * by {@link MetricsServlet}. Every metric has at most one label. Looking up a metric that already
+ * exists does not allocate, so it is fine to do on every request.
+ */
+public final class Metrics {
+
+    public static final String REQUEST_SECONDS = "smarthome_request_seconds";
+    public static final String INTENT_SECONDS = "smarthome_intent_seconds";
+    public static final String COMMAND_SECONDS = "smarthome_command_seconds";
+    public static final String FIRESTORE_SECONDS = "smarthome_firestore_seconds";
+    public static final String HOME_GRAPH_SECONDS = "smarthome_home_graph_seconds";
+    public static final String ERRORS_TOTAL = "smarthome_errors_total";
+
+    // Label values of ERRORS_TOTAL, any other error code is counted as "internal"
+    private static final Set<String> ERROR_CODES = new HashSet<>(Arrays.asList(
+            "ackNeeded", "alreadyInState", "authFailure", "challengeFailedPinNeeded",
+            "deviceBusy", "deviceJammingDetected", "deviceNotFound", "deviceOffline",
+            "deviceTurnedOff", "functionNotSupported", "hardError", "inSoftwareUpdate",
+            "lockedState", "lowBattery", "maxSettingReached", "minSettingReached",
+            "noTimerExists", "notSupported", "pinNeeded", "protocolError", "relinkRequired",
+            "safetyShutOff", "transientError", "unknownError", "valueOutOfRange"));
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    private static final ConcurrentMap<String, Family<Histogram>> HISTOGRAMS =
+            new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, Family<LongAdder>> COUNTERS =
+            new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, Gauge> GAUGES = new ConcurrentHashMap<>();
+
+    static {
+        histogram(REQUEST_SECONDS, "intent", "Time to answer a fulfillment request");
+        histogram(INTENT_SECONDS, "intent", "Time spent in the intent handler");
+        histogram(COMMAND_SECONDS, "command", "Time to apply one trait command to a device");
+        histogram(FIRESTORE_SECONDS, "operation", "Time of Firestore calls");
+        histogram(HOME_GRAPH_SECONDS, "call", "Time of Home Graph API calls");
+        counter(ERRORS_TOTAL, "code", "Error codes returned for devices");
+    }
+
+    private Metrics() {
+    }
+
+    /** Returns the histogram of {@code name} for one label value, in nanoseconds. */
+    public static Histogram latency(String name, String labelValue) {
+        return HISTOGRAMS.get(name).get(labelValue, Histogram::new);
+    }
+
+    /** Records the time from now until {@code future} completes, successfully or not. */
+    public static <T> ApiFuture<T> time(ApiFuture<T> future, String name, String labelValue) {
+        long start = System.nanoTime();
+        Histogram histogram = latency(name, labelValue);
+        future.addListener(() -> histogram.recordSince(start), Runnable::run);
+        return future;
+    }
+
+    public static void increment(String name, String labelValue) {
+        COUNTERS.get(name).get(labelValue, LongAdder::new).increment();
+    }
+
+    /** Counts an error code returned for a device in {@link #ERRORS_TOTAL}. */
+    public static void error(String errorCode) {
+        increment(ERRORS_TOTAL, ERROR_CODES.contains(errorCode) ? errorCode : "internal");
+    }
+
+    /** Exposes a value that is read whenever the metrics are scraped, replacing any earlier one. */
+    public static void gauge(String name, String help, boolean counter, LongSupplier value) {
+        GAUGES.put(name, new Gauge(help, counter, value));
+    }
+
+    /** Writes every metric in the Prometheus text exposition format. */
+    public static void write(Writer out) throws IOException {
+        for (Map.Entry<String, Family<Histogram>> family : HISTOGRAMS.entrySet()) {
+            String name = family.getKey();
+            writeHeader(out, name, family.getValue().help, "summary");
+            for (Map.Entry<String, Histogram> metric : family.getValue().metrics.entrySet()) {
+                String label = family.getValue().labelName + "=\""
+                        + escape(metric.getKey()) + "\"";
+                Histogram histogram = metric.getValue();
+                for (double quantile : QUANTILES) {
+                    out.write(name + "{" + label + ",quantile=\"" + quantile + "\"} "
+                            + seconds(histogram.getValueAtQuantile(quantile)) + "\n");
+                }
+                out.write(name + "_sum{" + label + "} " + seconds(histogram.getSum()) + "\n");
+                out.write(name + "_count{" + label + "} " + histogram.getCount() + "\n");
+            }
+        }
+        for (Map.Entry<String, Family<LongAdder>> family : COUNTERS.entrySet()) {
+            String name = family.getKey();
+            writeHeader(out, name, family.getValue().help, "counter");
+            for (Map.Entry<String, LongAdder> metric : family.getValue().metrics.entrySet()) {
+                out.write(name + "{" + family.getValue().labelName + "=\""
+                        + escape(metric.getKey()) + "\"} " + metric.getValue().sum() + "\n");
+            }
+        }
+        for (Map.Entry<String, Gauge> gauge : GAUGES.entrySet()) {
+            Gauge value = gauge.getValue();
+            writeHeader(out, gauge.getKey(), value.help, value.counter ? "counter" : "gauge");
+            out.write(gauge.getKey() + " " + value.value.getAsLong() + "\n");
+        }
+    }
+
+    private static void histogram(String name, String labelName, String help) {
+        HISTOGRAMS.put(name, new Family<>(labelName, help));
+    }
+
+    private static void counter(String name, String labelName, String help) {
+        COUNTERS.put(name, new Family<>(labelName, help));
+    }
+
+    private static void writeHeader(Writer out, String name, String help, String type)
+            throws IOException {
+        out.write("# HELP " + name + " " + help + "\n");
+        out.write("# TYPE " + name + " " + type + "\n");
+    }
+
+    private static String seconds(long nanos) {
+        return Double.toString(nanos / NANOS_PER_SECOND);
+    }
+
+    private static String escape(String labelValue) {
+        return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static class Family<T> {
+        final String labelName;
+        final String help;
+        final ConcurrentMap<String, T> metrics = new ConcurrentHashMap<>();
+
+        Family(String labelName, String help) {
+            this.labelName = labelName;
+            this.help = help;
+        }
+
+        T get(String labelValue, Supplier<T> factory) {
+            T metric = metrics.get(labelValue);
+            if (metric == null) {
+                metric = metrics.computeIfAbsent(labelValue, value -> factory.get());
+            }
+            return metric;
+        }
+    }
+
+    private static class Gauge {
+        final String help;
+        final boolean counter;
+        final LongSupplier value;
+
+        Gauge(String help, boolean counter, LongSupplier value) {
+            this.help = help;
+            this.counter = counter;
+            this.value = value;
+        }
+    }
+}
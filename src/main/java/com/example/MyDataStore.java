@@ -18,79 +18,125 @@ package com.example;
 
 import com.google.actions.api.smarthome.ExecuteRequest;
 import com.google.api.core.ApiFuture;
-import com.google.auth.oauth2.GoogleCredentials;
 import com.google.cloud.firestore.DocumentReference;
 import com.google.cloud.firestore.DocumentSnapshot;
 import com.google.cloud.firestore.Firestore;
 import com.google.cloud.firestore.QueryDocumentSnapshot;
 import com.google.cloud.firestore.QuerySnapshot;
-import com.google.firebase.FirebaseApp;
-import com.google.firebase.FirebaseOptions;
-import com.google.firebase.cloud.FirestoreClient;
-import java.io.FileInputStream;
-import java.io.InputStream;
+import com.google.cloud.firestore.WriteBatch;
+import com.google.cloud.firestore.WriteResult;
+import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
-import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class MyDataStore {
+public class MyDataStore implements DeviceStore {
 
-    private static final String DATABASE_URL = "";
     private static final Logger LOGGER = LoggerFactory.getLogger(MySmartHomeApp.class);
-    private static MyDataStore ourInstance = new MyDataStore();
-    private static Firestore database;
-
-    public MyDataStore() {
-        // Use a service account
-        try {
-            InputStream serviceAccount = new FileInputStream("WEB-INF/smart-home-key.json");
-
-            GoogleCredentials credentials = GoogleCredentials.fromStream(serviceAccount);
-            FirebaseOptions options = new FirebaseOptions.Builder().setCredentials(credentials)
-                    .setDatabaseUrl(DATABASE_URL).build();
-            FirebaseApp.initializeApp(options);
-
-            database = FirestoreClient.getFirestore();
-
-        } catch (Exception e) {
-            LOGGER.error("ERROR: invalid service account credentials. See README.");
-            LOGGER.error(e.getMessage());
-
-            System.exit(1);
-        }
+    private static MyDataStore ourInstance;
+    private final Firestore database;
+
+    // Access token -> user id. Tokens are only ever resolved against Firestore on a miss.
+    private final ExpiringCache<String, String> userIdCache = new ExpiringCache<>(
+            Integer.getInteger("smarthome.tokenCache.size", 1000),
+            Long.getLong("smarthome.tokenCache.ttlMillis", 5 * 60 * 1000L));
+
+    // User id -> device id -> document reference, for the most recently active users
+    private final ExpiringCache<String, ConcurrentMap<String, DocumentReference>> deviceDocuments =
+            new ExpiringCache<>(Integer.getInteger("smarthome.documentCache.users", 1000),
+                    10 * 60 * 1000L);
+
+    // Device documents, so QUERY and EXECUTE do not have to read them from Firestore each time
+    private final DeviceStateCache stateCache = new DeviceStateCache(
+            Integer.getInteger("smarthome.stateCache.size", 10000),
+            Long.getLong("smarthome.stateCache.ttlMillis", 60 * 1000L));
+
+    // Devices of active users, kept up to date by snapshot listeners if enabled
+    private final DeviceReplica replica;
+
+    // Serializes the commands and writes of each device
+    private final DeviceActors actors = new DeviceActors();
+
+    // Counts down the timers of devices with the Timer trait
+    private final DeviceTimers timers = new DeviceTimers(this::expireTimer);
+
+    public MyDataStore(Firestore database) {
+        this.database = database;
+        this.replica = new DeviceReplica(database);
+        Metrics.gauge("smarthome_token_cache_hits_total", "Access tokens resolved from the cache",
+                true, this::getUserIdCacheHits);
+        Metrics.gauge("smarthome_token_cache_misses_total",
+                "Access tokens resolved with a Firestore query", true,
+                this::getUserIdCacheMisses);
+        Metrics.gauge("smarthome_state_cache_hits_total", "Device documents read from the cache",
+                true, this::getStateCacheHits);
+        Metrics.gauge("smarthome_state_cache_misses_total",
+                "Device documents not found in the cache", true, this::getStateCacheMisses);
+        Metrics.gauge("smarthome_device_mutations_queued_total",
+                "Commands that waited for another command to the same device", true,
+                actors::getQueued);
+        Metrics.gauge("smarthome_device_timers_running", "Device timers counting down", false,
+                timers::getRunning);
+        Metrics.gauge("smarthome_replica_users", "Users whose devices are replicated", false,
+                replica::getUsers);
+        Metrics.gauge("smarthome_replica_hits_total", "Device documents read from the replica",
+                true, replica::getHits);
+        Metrics.gauge("smarthome_replica_misses_total",
+                "Device documents the replica could not provide", true, replica::getMisses);
     }
 
-    public static MyDataStore getInstance() {
+    /**
+     * Returns the store backed by the Firestore client of the {@link SmartHomeContext}, creating it
+     * on first use.
+     */
+    public static synchronized MyDataStore getInstance() {
+        if (ourInstance == null) {
+            ourInstance = new MyDataStore(SmartHomeContext.getInstance().getFirestore());
+        }
         return ourInstance;
     }
 
-    public List<QueryDocumentSnapshot> getDevices(String userId) {
-        List<QueryDocumentSnapshot> devices = new ArrayList<>();
-        try {
-            ApiFuture<QuerySnapshot> deviceQuery =
-                    database.collection("users").document(userId)
-                            .collection("devices").get();
-            QuerySnapshot querySnapshot = deviceQuery.get();
-            devices = querySnapshot.getDocuments();
-        } catch (ExecutionException | InterruptedException e) {
-            e.printStackTrace();
+    @Override
+    public Map<String, Map<String, Object>> getDevices(String userId)
+            throws ExecutionException, InterruptedException {
+        Map<String, Map<String, Object>> devices = replica.getDevices(userId);
+        if (devices != null) {
+            return devices;
+        }
+        devices = new LinkedHashMap<>();
+        ApiFuture<QuerySnapshot> deviceQuery = Metrics.time(
+                database.collection("users").document(userId)
+                        .collection("devices").get(), Metrics.FIRESTORE_SECONDS, "query");
+        QuerySnapshot querySnapshot = deviceQuery.get();
+        for (QueryDocumentSnapshot device : querySnapshot.getDocuments()) {
+            devices.put(device.getId(), device.getData());
         }
         return devices;
     }
 
+    @Override
     public String getUserId(String token) throws ExecutionException, InterruptedException {
         if (token == null) {
             token = "Bearer 123access";
         }
-        ApiFuture<QuerySnapshot> userQuery =
-                database.collection("users").whereEqualTo("fakeAccessToken",
-                        token.substring(7))
-                        .get();
+        String accessToken = token.substring(7);
+        String userId = userIdCache.get(accessToken);
+        if (userId != null) {
+            return userId;
+        }
+        ApiFuture<QuerySnapshot> userQuery = Metrics.time(
+                database.collection("users").whereEqualTo("fakeAccessToken", accessToken)
+                        .get(), Metrics.FIRESTORE_SECONDS, "query");
         QuerySnapshot usersSnapshot = userQuery.get();
         List<QueryDocumentSnapshot> users = usersSnapshot.getDocuments();
 
@@ -102,440 +148,403 @@ public class MyDataStore {
             throw e;
         }
 
+        userIdCache.put(accessToken, user.getId());
         return user.getId();
     }
 
+    @Override
+    public void invalidateToken(String accessToken) {
+        userIdCache.invalidate(accessToken);
+    }
+
+    @Override
+    public void invalidateUser(String userId) {
+        userIdCache.invalidateIf((token, cachedUserId) -> cachedUserId.equals(userId));
+    }
+
+    public long getUserIdCacheHits() {
+        return userIdCache.getHits();
+    }
+
+    public long getUserIdCacheMisses() {
+        return userIdCache.getMisses();
+    }
+
+    @Override
     public Boolean isHomegraphEnabled(String userId)
             throws ExecutionException, InterruptedException {
-        DocumentSnapshot user = database.collection("users").document(userId).get().get();
+        DocumentSnapshot user = Metrics.time(database.collection("users").document(userId).get(),
+                Metrics.FIRESTORE_SECONDS, "read").get();
         return (Boolean) user.get("homegraph");
     }
 
+    @Override
     public void setHomegraph(String userId, Boolean enable) {
         DocumentReference user = database.collection("users").document(userId);
-        user.update("homegraph", enable);
+        Metrics.time(user.update("homegraph", enable), Metrics.FIRESTORE_SECONDS, "update");
     }
 
+    @Override
     public void updateDevice(String userId, String deviceId, String deviceName,
             String deviceNickname, Map<String, Object> states, String errorCode, String tfa) {
-        DocumentReference device =
-                database.collection("users").document(userId)
-                        .collection("devices")
-                        .document(deviceId);
+        Map<String, Object> fields = new HashMap<>();
         if (deviceName != null) {
-            device.update("name", deviceName);
+            fields.put("name", deviceName);
         }
         if (deviceNickname != null) {
-            device.update("nickname", deviceNickname);
+            fields.put("nickname", deviceNickname);
         }
         if (states != null) {
-            device.update("states", states);
+            fields.put("states", states);
         }
         if (errorCode != null) {
-            device.update("errorCode", errorCode);
+            fields.put("errorCode", errorCode);
         }
         if (tfa != null) {
-            device.update("tfa", tfa);
+            fields.put("tfa", tfa);
+        }
+        if (fields.isEmpty()) {
+            return;
+        }
+        // Written like a command so it is ordered with the writes of commands to the device
+        ExecuteBatch batch = new ExecuteBatch(userId);
+        try {
+            actors.call(userId, deviceId, actor -> {
+                write(actor, userId, deviceId, fields, batch);
+                if (states != null) {
+                    timers.update(userId, deviceId, states);
+                }
+                return null;
+            });
+            commit(batch);
+        } catch (Exception e) {
+            LOGGER.error("failed to update device " + deviceId, e);
         }
     }
 
+    /** Writes the completion state of a timer that has run out and reports it. */
+    private void expireTimer(String userId, String deviceId, DeviceTimers.Expiry expiry)
+            throws Exception {
+        ExecuteBatch batch = new ExecuteBatch(userId);
+        boolean expired = actors.call(userId, deviceId, actor -> {
+            if (!expiry.complete()) {
+                return false;
+            }
+            write(actor, userId, deviceId, DeviceTimers.EXPIRED_FIELDS, batch);
+            return true;
+        });
+        if (!expired || !commit(batch).isEmpty()) {
+            return;
+        }
+        Map<String, Object> states = new HashMap<>();
+        states.put("timerRemainingSec", -1);
+        states.put("timerPaused", false);
+        // Reported for our single user, like the states of /smarthome/update
+        SmartHomeContext.getInstance().getReportStateBatcher().report(
+                MySmartHomeApp.AGENT_USER_ID, deviceId, StructConverter.toStruct(states));
+    }
+
+    /**
+     * Applies field updates that do not depend on the current document to a device and adds
+     * them to {@code batch}. Called from the device's actor.
+     */
+    private void write(DeviceActors.Device actor, String userId, String deviceId,
+            Map<String, Object> fields, ExecuteBatch batch) {
+        Map<String, Object> device = actor.getDocument();
+        if (device != null) {
+            actor.update(DeviceStateCache.withFields(device, fields));
+        }
+        stateCache.update(userId, deviceId, fields);
+        if (batch.add(deviceId, fields)) {
+            // Once per batch, commit reports one outcome for each device
+            replica.pending(userId, deviceId);
+        }
+    }
+
+    @Override
     public void addDevice(String userId, Map<String, Object> data) {
         String deviceId = (String) data.get("deviceId");
-        database.collection("users").document(userId).collection("devices")
-                .document(deviceId)
-                .set(data);
+        Metrics.time(deviceDocument(userId, deviceId).set(data), Metrics.FIRESTORE_SECONDS, "set");
+        stateCache.put(userId, deviceId, data);
     }
 
+    @Override
+    public CompletableFuture<Void> addDevices(String userId, List<Map<String, Object>> devices) {
+        if (devices.size() > MAX_BATCH_WRITES) {
+            throw new IllegalArgumentException("at most " + MAX_BATCH_WRITES + " devices");
+        }
+        WriteBatch writeBatch = database.batch();
+        for (Map<String, Object> data : devices) {
+            writeBatch.set(deviceDocument(userId, (String) data.get("deviceId")), data);
+        }
+        ApiFuture<List<WriteResult>> commit =
+                Metrics.time(writeBatch.commit(), Metrics.FIRESTORE_SECONDS, "batch_write");
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        commit.addListener(() -> {
+            try {
+                commit.get();
+                for (Map<String, Object> data : devices) {
+                    stateCache.put(userId, (String) data.get("deviceId"), data);
+                }
+                result.complete(null);
+            } catch (ExecutionException e) {
+                result.completeExceptionally(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                result.completeExceptionally(e);
+            }
+        }, Runnable::run);
+        return result;
+    }
+
+    @Override
     public void deleteDevice(String userId, String deviceId) {
-        database.collection("users").document(userId).collection("devices")
-                .document(deviceId)
-                .delete();
+        try {
+            actors.call(userId, deviceId, actor -> {
+                actor.discard();
+                return null;
+            });
+        } catch (Exception e) {
+            LOGGER.error("failed to discard device " + deviceId, e);
+        }
+        replica.pending(userId, deviceId);
+        ApiFuture<WriteResult> delete = Metrics.time(deviceDocument(userId, deviceId).delete(),
+                Metrics.FIRESTORE_SECONDS, "delete");
+        delete.addListener(() -> {
+            try {
+                replica.written(userId, deviceId, delete.get().getUpdateTime());
+            } catch (ExecutionException | InterruptedException e) {
+                replica.written(userId, deviceId, null);
+            }
+        }, Runnable::run);
+        stateCache.invalidate(userId, deviceId);
+        ConcurrentMap<String, DocumentReference> documents = deviceDocuments.get(userId);
+        if (documents != null) {
+            documents.remove(deviceId);
+        }
     }
 
+    @Override
     public Map<String, Object> getState(String userId, String deviceId)
             throws ExecutionException, InterruptedException {
-        DocumentSnapshot device =
-                database.collection("users").document(userId)
-                        .collection("devices")
-                        .document(deviceId).get().get();
-        return (Map<String, Object>) device.get("states");
+        Map<String, Object> device = getDeviceData(userId, deviceId);
+        return device == null ? null : statesOf(userId, deviceId, device);
     }
 
-    public Map<String, Object> execute(String userId, String deviceId,
-            ExecuteRequest.Inputs.Payload.Commands.Execution execution)
-            throws Exception {
-
-        DocumentSnapshot device =
-                database.collection("users").document(userId)
-                        .collection("devices")
-                        .document(deviceId).get().get();
-        Map<String, Object> deviceStates = (Map<String, Object>) device.getData().get("states");
-        Map<String, Object> states = new HashMap<>();
-        if (device.contains("states")) {
-            states.putAll(deviceStates);
+    /** Reads every device that is not cached with a single round trip. */
+    @Override
+    public Map<String, Map<String, Object>> getStates(String userId, List<String> deviceIds)
+            throws ExecutionException, InterruptedException {
+        Map<String, Map<String, Object>> states = new LinkedHashMap<>();
+        List<DocumentReference> missing = new ArrayList<>();
+        for (String deviceId : deviceIds) {
+            Map<String, Object> replicated = replica.get(userId, deviceId);
+            if (replicated != null) {
+                states.put(deviceId, statesOf(userId, deviceId, replicated));
+                continue;
+            }
+            DeviceStateCache.CachedDevice cached = stateCache.get(userId, deviceId);
+            if (cached != null) {
+                states.put(deviceId, statesOf(userId, deviceId, cached.getData()));
+            } else {
+                missing.add(deviceDocument(userId, deviceId));
+            }
+        }
+        if (!missing.isEmpty()) {
+            long loadVersion = stateCache.beginLoad();
+            // Whole documents are fetched so that a following EXECUTE is served from the cache
+            List<DocumentSnapshot> devices = Metrics.time(
+                    database.getAll(missing.toArray(new DocumentReference[0])),
+                    Metrics.FIRESTORE_SECONDS, "batch_read").get();
+            for (DocumentSnapshot device : devices) {
+                if (device.exists()) {
+                    stateCache.load(userId, device.getId(), device.getData(), loadVersion);
+                    states.put(device.getId(),
+                            statesOf(userId, device.getId(), device.getData()));
+                }
+            }
         }
+        return states;
+    }
 
-        if (!(Boolean) states.get("online")) {
-            throw new Exception("deviceOffline");
+    /** Returns the states of a device, with the time left on its timer. */
+    private Map<String, Object> statesOf(String userId, String deviceId,
+            Map<String, Object> device) {
+        Map<String, Object> states = (Map<String, Object>) device.get("states");
+        return states == null ? new HashMap<>()
+                : timers.withRemaining(userId, deviceId, states);
+    }
+
+    public long getStateCacheHits() {
+        return stateCache.getHits();
+    }
+
+    public long getStateCacheMisses() {
+        return stateCache.getMisses();
+    }
+
+    /** Returns the reference of a device document, building it only on first use. */
+    private DocumentReference deviceDocument(String userId, String deviceId) {
+        ConcurrentMap<String, DocumentReference> documents = deviceDocuments.get(userId);
+        if (documents == null) {
+            ConcurrentMap<String, DocumentReference> created = new ConcurrentHashMap<>();
+            documents = deviceDocuments.putIfAbsent(userId, created);
+            if (documents == null) {
+                documents = created;
+            }
         }
+        return documents.computeIfAbsent(deviceId,
+                key -> database.collection("users").document(userId)
+                        .collection("devices")
+                        .document(deviceId));
+    }
 
-        if (!device.getString("errorCode").isEmpty()) {
-            throw new Exception(device.getString("errorCode"));
+    /**
+     * Returns the device document from the replica or the state cache, reading it through on a
+     * miss.
+     */
+    private Map<String, Object> getDeviceData(String userId, String deviceId)
+            throws ExecutionException, InterruptedException {
+        Map<String, Object> replicated = replica.get(userId, deviceId);
+        if (replicated != null) {
+            return replicated;
         }
+        DeviceStateCache.CachedDevice cached = stateCache.get(userId, deviceId);
+        if (cached != null) {
+            return cached.getData();
+        }
+        long loadVersion = stateCache.beginLoad();
+        DocumentSnapshot device = Metrics.time(deviceDocument(userId, deviceId).get(),
+                Metrics.FIRESTORE_SECONDS, "read").get();
+        Map<String, Object> data = device.getData();
+        stateCache.load(userId, deviceId, data, loadVersion);
+        return data;
+    }
 
-        if (device.getString("tfa").equals("ack") && execution.getChallenge() == null) {
-            throw new Exception("ackNeeded");
-        } else if (!device.getString("tfa").isEmpty() && execution.getChallenge() == null) {
-            throw new Exception("pinNeeded");
-        } else if (!device.getString("tfa").isEmpty() && execution.getChallenge() != null) {
-          String pin = (String) execution.getChallenge().get("pin");
-          if (pin != null && !pin.equals(device.getString("tfa"))) {
-            throw new Exception("challengeFailedPinNeeded");
-          }
+    /**
+     * Commits every update collected in {@code batch}, in chunks of at most
+     * {@value #MAX_BATCH_WRITES} devices per Firestore WriteBatch. The write only starts once
+     * earlier writes of the same devices have completed, and writes the latest value of every
+     * field, so that a write that completes late never overwrites a newer one.
+     */
+    @Override
+    public Map<String, String> commit(ExecuteBatch batch) throws InterruptedException {
+        Map<String, Map<String, Object>> updates = batch.getUpdates();
+        Map<String, String> failures = new LinkedHashMap<>();
+        if (updates.isEmpty()) {
+            return failures;
+        }
+        String userId = batch.getUserId();
+        Set<String> unwritten = new HashSet<>(updates.keySet());
+        try (DeviceActors.Write write = actors.beginWrite(userId, updates.keySet())) {
+            commit(userId, updates, write, failures, unwritten);
+        } catch (InterruptedException e) {
+            throw e;
+        } catch (Exception e) {
+            // Only the mailboxes of the devices can fail, and they just run our own code
+            throw new IllegalStateException(e);
+        } finally {
+            // Not known whether they were applied, the replica is only used again once a snapshot
+            // has the current documents
+            for (String deviceId : unwritten) {
+                replica.written(userId, deviceId, null);
+                stateCache.invalidate(userId, deviceId);
+            }
         }
+        return failures;
+    }
 
-        switch (execution.command) {
-        // action.devices.traits.ArmDisarm
-        case "action.devices.commands.ArmDisarm":
-            if (execution.getParams().containsKey("arm")) {
-                boolean isArmed = (boolean) execution.getParams().get("arm");
-                states.put("isArmed", isArmed);
-            } else if (execution.getParams().containsKey("cancel")) {
-                // Cancel value is in relation to the arm value
-                boolean isArmed = (boolean) execution.getParams().get("arm");
-                states.put("isArmed", !isArmed);
+    private void commit(String userId, Map<String, Map<String, Object>> updates,
+            DeviceActors.Write write, Map<String, String> failures, Set<String> unwritten)
+            throws Exception {
+        List<Map.Entry<String, Map<String, Object>>> writes = new ArrayList<>();
+        for (Map.Entry<String, Map<String, Object>> update : updates.entrySet()) {
+            writes.add(new AbstractMap.SimpleImmutableEntry<>(update.getKey(),
+                    write.getFields(update.getKey(), update.getValue())));
+        }
+        List<ApiFuture<List<WriteResult>>> commits = new ArrayList<>();
+        for (int start = 0; start < writes.size(); start += MAX_BATCH_WRITES) {
+            WriteBatch writeBatch = database.batch();
+            for (Map.Entry<String, Map<String, Object>> device :
+                    writes.subList(start, Math.min(start + MAX_BATCH_WRITES, writes.size()))) {
+                writeBatch.update(deviceDocument(userId, device.getKey()), device.getValue());
             }
-            if (execution.getParams().containsKey("armLevel")) {
-                database.collection("users").document(userId)
-                    .collection("devices")
-                    .document(deviceId)
-                    .update("states.isArmed", states.get("isArmed"),
-                        "states.currentArmLevel", execution.getParams().get("armLevel"));
-                    states.put("currentArmLevel", execution.getParams().get("armLevel"));
-            } else {
-                database.collection("users").document(userId)
-                    .collection("devices")
-                    .document(deviceId)
-                    .update("isArmed", states.get("isArmed"));
+            commits.add(Metrics.time(writeBatch.commit(), Metrics.FIRESTORE_SECONDS,
+                    "batch_write"));
+        }
+
+        for (int chunk = 0; chunk < commits.size(); chunk++) {
+            List<WriteResult> results;
+            try {
+                results = commits.get(chunk).get();
+            } catch (ExecutionException e) {
+                LOGGER.error("failed to commit execute batch", e);
+                results = null;
             }
-            break;
-
-        // action.devices.traits.Brightness
-        case "action.devices.commands.BrightnessAbsolute":
-            database.collection("users").document(userId)
-                    .collection("devices")
-                    .document(deviceId)
-                    .update("states.brightness", execution.getParams()
-                            .get("brightness"));
-            states.put("brightness", execution.getParams().get("brightness"));
-            break;
-
-        // action.devices.traits.CameraStream
-        case "action.devices.commands.GetCameraStream":
-            states.put("cameraStreamAccessUrl", "https://fluffysheep.com/baaaaa.mp4");
-            break;
-
-        // action.devices.traits.ColorSetting
-        case "action.devices.commands.ColorAbsolute":
-            String colorType;
-            Object color;
-            Map<String, Object> colorMap =
-                    (Map<String, Object>) execution.getParams().get("color");
-
-            if (colorMap.containsKey("spectrumRGB")) {
-                database.collection("users").document(userId)
-                        .collection("devices")
-                        .document(deviceId)
-                        .update("states.color.spectrumRgb", colorMap.get("spectrumRGB"));
-                color = colorMap.get("spectrumRGB");
-                colorType = "spectrumRgb";
-            } else {
-                if (colorMap.containsKey("spectrumHSV")) {
-                    database.collection("users").document(userId)
-                            .collection("devices")
-                            .document(deviceId)
-                            .update("states.color.spectrumHsv", colorMap.get("spectrumHSV"));
-                    colorType = "spectrumHsv";
-                    color = colorMap.get("spectrumHSV");
-
-                } else {
-                    if (colorMap.containsKey("temperature")) {
-                        database.collection("users").document(userId)
-                                .collection("devices")
-                                .document(deviceId)
-                                .update("states.color.temperatureK",
-                                        colorMap.get("temperature"));
-                        colorType = "temperatureK";
-                        color = colorMap.get("temperature");
-
-                    } else {
-                        throw new Exception("notSupported");
-                    }
+            boolean committed = results != null;
+            int start = chunk * MAX_BATCH_WRITES;
+            List<Map.Entry<String, Map<String, Object>>> devices =
+                    writes.subList(start, Math.min(start + MAX_BATCH_WRITES, writes.size()));
+            for (int i = 0; i < devices.size(); i++) {
+                Map.Entry<String, Map<String, Object>> device = devices.get(i);
+                // Committed values are already cached, failed ones are read again next time
+                write.complete(device.getKey(), committed);
+                replica.written(userId, device.getKey(),
+                        committed ? results.get(i).getUpdateTime() : null);
+                unwritten.remove(device.getKey());
+                if (!committed) {
+                    stateCache.invalidate(userId, device.getKey());
+                    failures.put(device.getKey(), "transientError");
                 }
             }
-            states.put(colorType, color);
-            break;
-
-        // action.devices.traits.Dock
-        case "action.devices.commands.Dock":
-            // This has no parameters
-            database.collection("users").document(userId)
-                    .collection("devices")
-                    .document(deviceId).update("states.isDocked", true);
-            states.put("isDocked", true);
-            break;
-
-        // action.devices.traits.FanSpeed
-        case "action.devices.commands.SetFanSpeed":
-            database.collection("users").document(userId)
-                    .collection("devices")
-                    .document(deviceId).update("states.currentFanSpeedSetting",
-                    execution.getParams().get("fanSpeed"));
-            states.put("currentFanSpeedSetting", execution.getParams().get("fanSpeed"));
-            break;
-
-        case "action.devices.commands.Reverse":
-            database.collection("users").document(userId)
-                    .collection("devices")
-                    .document(deviceId).update("states.currentFanSpeedReverse",
-                    true);
-            break;
-
-        // action.devices.traits.Locator
-        case "action.devices.commands.Locate":
-            database.collection("users").document(userId)
-                    .collection("devices")
-                    .document(deviceId)
-                    .update("states.silent", execution.getParams().get("silent"),
-                            "states.generatedAlert", true);
-            states.put("generatedAlert", true);
-            break;
-
-        // action.devices.traits.LockUnlock
-        case "action.devices.commands.LockUnlock":
-            database.collection("users").document(userId)
-                .collection("devices")
-                .document(deviceId)
-                .update("states.isLocked", execution.getParams().get("lock"));
-            states.put("isLocked", execution.getParams().get("lock"));
-            break;
-
-        // action.devices.traits.OnOff
-        case "action.devices.commands.OnOff":
-            database.collection("users").document(userId)
-                    .collection("devices")
-                    .document(deviceId).update("states.on",
-                    execution.getParams().get("on"));
-            states.put("on", execution.getParams().get("on"));
-            break;
-
-
-        // action.devices.traits.OpenClose
-        case "action.devices.commands.OpenClose":
-            // Check if the device can open in multiple directions
-            JSONObject attributes = (JSONObject) device.getData().get("attributes");
-            if (attributes != null && attributes.has("openDirection")) {
-                // The device can open in more than one direction
-                String direction = (String) execution.getParams().get("openDirection");
-                List<JSONObject> openStates = (List<JSONObject>) states.get("openState");
-                openStates.forEach(state -> {
-                    if (state.getString("openDirection").equals(direction)) {
-                        state.put("openPercent", execution.getParams().get("openPercent"));
-                    }
-                });
-                states.put("openStates", openStates);
-                database.collection("users").document(userId)
-                    .collection("devices")
-                    .document(deviceId)
-                    .update("states.openState", openStates);
-            } else {
-                // The device can only open in one direction
-                database.collection("users").document(userId)
-                    .collection("devices")
-                    .document(deviceId)
-                    .update("states.openPercent", execution.getParams().get("openPercent"));
-                states.put("openPercent", execution.getParams().get("openPercent"));
-            }
-            break;
-
-        // action.devices.traits.RunCycle - No execution
-        // action.devices.traits.Scene
-        case "action.devices.commands.ActivateScene":
-            database.collection("users").document(userId)
-                    .collection("devices")
-                    .document(deviceId)
-                    .update("states.deactivate", execution.getParams()
-                            .get("deactivate"));
-            // Scenes are stateless
-            break;
-
-        // action.devices.traits.StartStop
-        case "action.devices.commands.StartStop":
-            database.collection("users").document(userId)
-                    .collection("devices")
-                    .document(deviceId)
-                    .update("states.isRunning", execution.getParams().get("start"));
-            states.put("isRunning", execution.getParams().get("start"));
-            break;
-
-        case "action.devices.commands.PauseUnpause":
-            database.collection("users").document(userId)
-                    .collection("devices")
-                    .document(deviceId)
-                    .update("states.isPaused", execution.getParams().get("pause"));
-            states.put("isPaused", execution.getParams().get("pause"));
-            break;
-
-        // action.devices.traits.Modes
-        case "action.devices.commands.SetModes":
-            Map<String, Object> currentModeSettings = (Map<String, Object>) states
-                    .getOrDefault("currentModeSettings", new HashMap<String, Object>());
-            currentModeSettings.putAll((Map<String, Object>) execution.getParams()
-                    .getOrDefault("updateModeSettings", new HashMap<String, Object>()));
-            database.collection("users").document(userId)
-                    .collection("devices")
-                    .document(deviceId)
-                    .update("states.currentModeSettings", currentModeSettings);
-            states.put("currentModeSettings", currentModeSettings);
-            break;
-
-        // action.devices.traits.Timer
-        case "action.devices.commands.TimerStart":
-            database.collection("users").document(userId)
-                .collection("devices")
-                .document(deviceId)
-                .update("states.timerRemainingSec", execution.getParams().get("timerTimeSec"));
-            states.put("timerRemainingSec", execution.getParams().get("timerTimeSec"));
-            break;
-
-        case "action.devices.commands.TimerAdjust":
-            if ((int) states.get("timerRemainingSec") == -1) {
-                // No timer exists
-                throw new RuntimeException("noTimerExists");
-            }
-            int newTimerRemainingSec = (int) states.get("timerRemainingSec") +
-                (int) execution.getParams().get("timerTimeSec");
-            if (newTimerRemainingSec < 0) {
-                throw new RuntimeException("valueOutOfRange");
-            }
-            database.collection("users").document(userId)
-                .collection("devices")
-                .document(deviceId)
-                .update("states.timerRemainingSec", newTimerRemainingSec);
-            states.put("timerRemainingSec", newTimerRemainingSec);
-            break;
-
-        case "action.devices.commands.TimerPause":
-            if ((int) states.get("timerRemainingSec") == -1) {
-                // No timer exists
-                throw new RuntimeException("noTimerExists");
-            }
-            database.collection("users").document(userId)
-                .collection("devices")
-                .document(deviceId)
-                .update("states.timerPaused", true);
-            states.put("timerPaused", true);
-            break;
-
-        case "action.devices.commands.TimerResume":
-            if ((int) states.get("timerRemainingSec") == -1) {
-                // No timer exists
-                throw new RuntimeException("noTimerExists");
-            }
-            database.collection("users").document(userId)
-                .collection("devices")
-                .document(deviceId)
-                .update("states.timerPaused", false);
-            states.put("timerPaused", false);
-            break;
-
-        case "action.devices.commands.TimerCancel":
-            if ((int) states.get("timerRemainingSec") == -1) {
-                // No timer exists
-                throw new RuntimeException("noTimerExists");
-            }
-            database.collection("users").document(userId)
-                .collection("devices")
-                .document(deviceId)
-                .update("states.timerRemainingSec", -1);
-            states.put("timerRemainingSec", 0);
-            break;
-
-        // action.devices.traits.Toggles
-        case "action.devices.commands.SetToggles":
-            Map<String, Object> currentToggleSettings = (Map<String, Object>) states
-                    .getOrDefault("currentToggleSettings", new HashMap<String, Object>());
-            currentToggleSettings.putAll((Map<String, Object>) execution.getParams()
-                    .getOrDefault("updateToggleSettings", new HashMap<String, Object>()));
-            database.collection("users").document(userId)
-                    .collection("devices")
-                    .document(deviceId)
-                    .update("states.currentToggleSettings", currentToggleSettings);
-            states.put("currentToggleSettings", currentToggleSettings);
-            break;
-
-
-        // action.devices.traits.TemperatureControl
-        case "action.devices.commands.SetTemperature":
-            database.collection("users").document(userId)
-                    .collection("devices")
-                    .document(deviceId).update("states.temperatureSetpointCelsius",
-                    execution.getParams().get("temperature"));
-            states.put("temperatureSetpointCelsius", execution.getParams().get("temperature"));
-            states.put("temperatureAmbientCelsius",
-                    deviceStates.get("temperatureAmbientCelsius"));
-            break;
-
-        // action.devices.traits.TemperatureSetting
-        case "action.devices.commands.ThermostatTemperatureSetpoint":
-            database.collection("users").document(userId)
-                    .collection("devices")
-                    .document(deviceId).update("states.thermostatTemperatureSetpoint",
-                    execution.getParams().get("thermostatTemperatureSetpoint"));
-            states.put("thermostatTemperatureSetpoint",
-                    execution.getParams().get("thermostatTemperatureSetpoint"));
-            states.put("thermostatMode", deviceStates.get("states.thermostatMode"));
-            states.put("thermostatTemperatureAmbient",
-                    deviceStates.get("thermostatTemperatureAmbient"));
-            states.put("thermostatHumidityAmbient",
-                    deviceStates.get("thermostatHumidityAmbient"));
-            break;
-
-        case "action.devices.commands.ThermostatTemperatureSetRange":
-            database.collection("users").document(userId)
-                    .collection("devices")
-                    .document(deviceId).update("states.thermostatTemperatureSetpointLow",
-                    execution.getParams().get("thermostatTemperatureSetpointLow"),
-                    "states.thermostatTemperatureSetpointHigh",
-                    execution.getParams().get("thermostatTemperatureSetpointHigh"));
-            states.put("thermostatTemperatureSetpoint",
-                    deviceStates.get("thermostatTemperatureSetpoint"));
-            states.put("thermostatMode", deviceStates.get("thermostatMode"));
-            states.put("thermostatTemperatureAmbient",
-                    deviceStates.get("thermostatTemperatureAmbient"));
-            states.put("thermostatHumidityAmbient",
-                    deviceStates.get("thermostatHumidityAmbient"));
-            break;
-
-        case "action.devices.commands.ThermostatSetMode":
-            database.collection("users").document(userId)
-                    .collection("devices")
-                    .document(deviceId).update("states.thermostatMode",
-                    execution.getParams().get("thermostatMode"));
-            states.put("thermostatMode", execution.getParams().get("thermostatMode"));
-            states.put("thermostatTemperatureSetpoint",
-                    deviceStates.get("thermostatTemperatureSetpoint"));
-            states.put("thermostatTemperatureAmbient",
-                    deviceStates.get("thermostatTemperatureAmbient"));
-            states.put("thermostatHumidityAmbient",
-                    deviceStates.get("thermostatHumidityAmbient"));
-            break;
-
         }
+    }
 
+    @Override
+    public Map<String, Object> execute(String userId, String deviceId,
+            ExecuteRequest.Inputs.Payload.Commands.Execution execution)
+            throws Exception {
+        ExecuteBatch batch = new ExecuteBatch(userId);
+        Map<String, Object> states = execute(userId, deviceId, execution, batch);
+        Map<String, String> failures = commit(batch);
+        if (!failures.isEmpty()) {
+            throw new ErrorCodeException(failures.get(deviceId));
+        }
         return states;
-
     }
 
-
+    @Override
+    public Map<String, Object> execute(String userId, String deviceId,
+            ExecuteRequest.Inputs.Payload.Commands.Execution execution, ExecuteBatch batch)
+            throws Exception {
+        if (batch == null) {
+            return execute(userId, deviceId, execution);
+        }
+        return actors.call(userId, deviceId, actor -> {
+            // Commands that have not been written yet are only in the actor's document
+            Map<String, Object> device = actor.getDocument();
+            if (device == null) {
+                device = getDeviceData(userId, deviceId);
+            }
+            if (device == null) {
+                throw new ErrorCodeException("deviceNotFound");
+            }
+            // Timer commands work with the time actually left, not the one last written
+            device = timers.withRemainingInDevice(userId, deviceId, device);
+            Map<String, Object> updates = new LinkedHashMap<>();
+            Map<String, Object> states = DeviceCommands.apply(device, execution, updates);
+            if (DeviceTimers.changesTimer(updates)) {
+                timers.update(userId, deviceId, DeviceTimers.withTimeLeft(device, updates));
+            }
+            if (!updates.isEmpty()) {
+                Map<String, Object> updated = DeviceStateCache.withFields(device, updates);
+                actor.update(updated);
+                stateCache.put(userId, deviceId, updated);
+                if (batch.add(deviceId, updates)) {
+                    replica.pending(userId, deviceId);
+                }
+            }
+            return states;
+        });
+    }
 }
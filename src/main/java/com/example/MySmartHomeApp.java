@@ -18,12 +18,8 @@ package com.example;
 
 
 import com.google.actions.api.smarthome.*;
-import com.google.cloud.firestore.QueryDocumentSnapshot;
 import com.google.home.graph.v1.DeviceProto;
-import com.google.protobuf.Struct;
-import com.google.protobuf.util.JsonFormat;
 import org.jetbrains.annotations.NotNull;
-import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -31,32 +27,110 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
 
 
 public class MySmartHomeApp extends SmartHomeApp {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(MySmartHomeApp.class);
-    private static MyDataStore database = MyDataStore.getInstance();
+    // Our single user's id, as returned in SYNC and used for Report State and Request Sync
+    public static final String AGENT_USER_ID = "1836.15267389";
+    // Built SYNC devices per user, dropped whenever one of the user's devices changes
+    private static ExpiringCache<String, SyncResponse.Payload.Device[]> syncCache =
+            new ExpiringCache<>(Integer.getInteger("smarthome.syncCache.size", 1000),
+                    Long.getLong("smarthome.syncCache.ttlMillis", 10 * 60 * 1000L));
+    private static final long TIMEOUT_MILLIS =
+            Long.getLong("smarthome.fulfillment.timeoutMillis", 30000);
+    // Responses of recent EXECUTE requests per user and request id, replayed when Google retries
+    private static ExpiringCache<String, CompletableFuture<ExecuteResponse>> executeResponses =
+            new ExpiringCache<>(Integer.getInteger("smarthome.executeCache.size", 10000),
+                    Long.getLong("smarthome.executeCache.ttlMillis", 5 * 60 * 1000L));
+    private static ExecuteFanOut fanOut =
+            Threading.newFanOut(Integer.getInteger("smarthome.execute.threads", 16));
+
+    static {
+        Metrics.gauge("smarthome_sync_cache_hits_total", "SYNC responses served from the cache",
+                true, syncCache::getHits);
+        Metrics.gauge("smarthome_sync_cache_misses_total", "SYNC responses that were built",
+                true, syncCache::getMisses);
+        Metrics.gauge("smarthome_execute_replays_total",
+                "EXECUTE retries answered with the response of the original request", true,
+                executeResponses::getHits);
+    }
+
+    private final Supplier<DeviceStore> store;
+
+    public MySmartHomeApp() {
+        store = DeviceStore::getInstance;
+    }
+
+    /** Fulfills intents with {@code store} instead of the configured one. */
+    MySmartHomeApp(DeviceStore store) {
+        this.store = () -> store;
+    }
 
     @NotNull
     @Override
     public SyncResponse onSync(SyncRequest syncRequest, Map<?, ?> headers) {
+        long start = System.nanoTime();
+        try {
+            return sync(syncRequest, headers);
+        } finally {
+            Metrics.latency(Metrics.INTENT_SECONDS, RequestLog.SYNC).recordSince(start);
+        }
+    }
+
+    private SyncResponse sync(SyncRequest syncRequest, Map<?, ?> headers) {
 
         SyncResponse response = new SyncResponse();
         response.setRequestId(syncRequest.requestId);
         response.setPayload(new SyncResponse.Payload());
-        response.payload.agentUserId = "1836.15267389";
+        response.payload.agentUserId = AGENT_USER_ID;
 
         String userId = getUserId(headers);
-        database.setHomegraph(userId, true);
-        List<QueryDocumentSnapshot> devices = database.getDevices(userId);
+        store.get().setHomegraph(userId, true);
+        SyncResponse.Payload.Device[] syncDevices = syncCache.get(userId);
+        if (syncDevices == null) {
+            syncDevices = buildSyncDevices(userId);
+            syncCache.put(userId, syncDevices);
+        }
+        response.payload.devices = syncDevices;
+
+        return response;
+    }
+
+    /**
+     * Drops the cached SYNC devices of a user. Call this whenever a device is added or removed, or
+     * a field reported in SYNC changes.
+     */
+    public static void invalidateSync(String userId) {
+        syncCache.invalidate(userId);
+    }
+
+    private SyncResponse.Payload.Device[] buildSyncDevices(String userId) {
+        Map<String, Map<String, Object>> devices;
+        try {
+            devices = store.get().getDevices(userId);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            // Fail the SYNC, an empty response would tell Google the devices are gone
+            LOGGER.error("failed to read devices of user {}", userId, e.getCause());
+            throw new IllegalStateException(e.getCause());
+        }
         int numOfDevices = devices.size();
-        response.payload.devices = new SyncResponse.Payload.Device[numOfDevices];
-        for (int i = 0; i < numOfDevices; i++) {
-            QueryDocumentSnapshot device = devices.get(i);
+        SyncResponse.Payload.Device[] syncDevices = new SyncResponse.Payload.Device[numOfDevices];
+        int i = 0;
+        for (Map.Entry<String, Map<String, Object>> deviceEntry : devices.entrySet()) {
+            Map<String, Object> device = deviceEntry.getValue();
             SyncResponse.Payload.Device.Builder deviceBuilder =
                 new SyncResponse.Payload.Device.Builder()
-                    .setId(device.getId())
+                    .setId(deviceEntry.getKey())
                     .setType((String) device.get("type"))
                     .setTraits((List<String>) device.get("traits"))
                     .setName(DeviceProto.DeviceNames.newBuilder()
@@ -72,34 +146,37 @@ public class MySmartHomeApp extends SmartHomeApp {
                             .setHwVersion((String) device.get("hwVersion"))
                             .setSwVersion((String) device.get("swVersion"))
                             .build());
-            if (device.contains("attributes")) {
-                Map<String, Object> attributes = new HashMap<>();
-                attributes.putAll((Map<String, Object>) device.get("attributes"));
-                JSONObject attributesJson = new JSONObject(attributes);
-                Struct.Builder attributeBuilder = Struct.newBuilder();
+            if (device.containsKey("attributes")) {
                 try {
-                    JsonFormat.parser().ignoringUnknownFields()
-                            .merge(attributesJson.toString(), attributeBuilder);
-                } catch (Exception e) {
-                    LOGGER.error("FAILED TO BUILD");
+                    deviceBuilder.setAttributes(StructConverter.toStruct(
+                            (Map<String, Object>) device.get("attributes")));
+                } catch (StructConversionException e) {
+                    LOGGER.error("failed to convert attributes of device {}: {}",
+                            deviceEntry.getKey(), e.getMessage());
                 }
-                deviceBuilder.setAttributes(attributeBuilder.build());
             }
-            if (device.contains("customData")) {
+            if (device.containsKey("customData")) {
                 Map<String, Object> customData = new HashMap<>();
                 customData.putAll((Map<String, Object>) device.get("customData"));
-                JSONObject customDataJson = new JSONObject(customData);
-                deviceBuilder.setCustomData(customDataJson.toString());
+                deviceBuilder.setCustomData(Json.GSON.toJson(customData));
             }
-            response.payload.devices[i] = deviceBuilder.build();
+            syncDevices[i++] = deviceBuilder.build();
         }
-
-        return response;
+        return syncDevices;
     }
 
     @NotNull
     @Override
     public QueryResponse onQuery(QueryRequest queryRequest, Map<?, ?> headers) {
+        long start = System.nanoTime();
+        try {
+            return query(queryRequest, headers);
+        } finally {
+            Metrics.latency(Metrics.INTENT_SECONDS, RequestLog.QUERY).recordSince(start);
+        }
+    }
+
+    private QueryResponse query(QueryRequest queryRequest, Map<?, ?> headers) {
         QueryRequest.Inputs.Payload.Device[] devices = ((QueryRequest.Inputs)
                 queryRequest.getInputs()[0]).payload.devices;
         String userId = getUserId(headers);
@@ -108,14 +185,31 @@ public class MySmartHomeApp extends SmartHomeApp {
         res.setRequestId(queryRequest.requestId);
         res.setPayload(new QueryResponse.Payload());
 
+        List<String> deviceIds = new ArrayList<>();
         for (QueryRequest.Inputs.Payload.Device device : devices) {
-            try {
-                deviceStates.put(device.id, database.getState(userId, device.id));
-            } catch (Exception e) {
-                LOGGER.error("QUERY FAILED");
+            deviceIds.add(device.id);
+        }
+        try {
+            Map<String, Map<String, Object>> states =
+                    store.get().getStates(userId, deviceIds);
+            for (String deviceId : deviceIds) {
+                Map<String, Object> state = states.get(deviceId);
+                if (state == null) {
+                    Metrics.error("deviceNotFound");
+                    Map<String, Object> failedDevice = new HashMap<>();
+                    failedDevice.put("errorCode", "deviceNotFound");
+                    deviceStates.put(deviceId, failedDevice);
+                } else {
+                    deviceStates.put(deviceId, state);
+                }
+            }
+        } catch (Exception e) {
+            LOGGER.error("QUERY FAILED", e);
+            Metrics.error("transientError");
+            for (String deviceId : deviceIds) {
                 Map<String, Object> failedDevice = new HashMap<>();
-                failedDevice.put("errorCode", e.getMessage());
-                deviceStates.put(device.id, failedDevice);
+                failedDevice.put("errorCode", "transientError");
+                deviceStates.put(deviceId, failedDevice);
             }
         }
         res.payload.setDevices(deviceStates);
@@ -126,73 +220,119 @@ public class MySmartHomeApp extends SmartHomeApp {
     @NotNull
     @Override
     public ExecuteResponse onExecute(ExecuteRequest executeRequest, Map<?, ?> headers) {
+        long start = System.nanoTime();
+        try {
+            return execute(executeRequest, headers);
+        } finally {
+            Metrics.latency(Metrics.INTENT_SECONDS, RequestLog.EXECUTE).recordSince(start);
+        }
+    }
+
+    /**
+     * Executes the commands of a request once. A retry of a request that is still running waits
+     * for it, and one of a request that has completed gets its response again, so that commands
+     * like TimerAdjust are never applied twice. Responses with a transient error are not kept, a
+     * retry executes the request again.
+     */
+    private ExecuteResponse execute(ExecuteRequest executeRequest, Map<?, ?> headers) {
         String userId = getUserId(headers);
+        if (executeRequest.requestId == null) {
+            return execute(executeRequest, userId, new ArrayList<>());
+        }
+        String key = userId + '/' + executeRequest.requestId;
+        CompletableFuture<ExecuteResponse> response = new CompletableFuture<>();
+        CompletableFuture<ExecuteResponse> original = executeResponses.putIfAbsent(key, response);
+        if (original != null) {
+            try {
+                // Not longer than the original may take, so a hung request cannot hold this thread
+                return original.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e.getCause());
+            } catch (TimeoutException e) {
+                throw new IllegalStateException("original EXECUTE request "
+                        + executeRequest.requestId + " did not complete in time", e);
+            }
+        }
+        try {
+            List<String> errorCodes = new ArrayList<>();
+            ExecuteResponse res = execute(executeRequest, userId, errorCodes);
+            if (errorCodes.contains("transientError")) {
+                // A retry may succeed, so it must not get this response
+                executeResponses.invalidate(key);
+            }
+            response.complete(res);
+            return res;
+        } catch (RuntimeException e) {
+            // Nothing to replay, let the next retry execute the request again
+            executeResponses.invalidate(key);
+            response.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    /** Executes the commands of a request, adding the error of every failed device to the list. */
+    private ExecuteResponse execute(ExecuteRequest executeRequest, String userId,
+            List<String> errorCodes) {
         ExecuteResponse res = new ExecuteResponse();
         List<ExecuteResponse.Payload.Commands> commandsResponse = new ArrayList<>();
         List<String> successfulDevices = new ArrayList<>();
         Map<String, Object> states = new HashMap<>();
+        // Writes of all devices are committed together once every command has been applied
+        ExecuteBatch batch = new ExecuteBatch(userId);
+        DeviceStore database = store.get();
 
         ExecuteRequest.Inputs.Payload.Commands[] commands =
                 ((ExecuteRequest.Inputs) executeRequest.inputs[0])
                         .payload.commands;
+        List<String> targetIds = new ArrayList<>();
+        List<ExecuteRequest.Inputs.Payload.Commands.Execution> targetExecutions =
+                new ArrayList<>();
         for (ExecuteRequest.Inputs.Payload.Commands command : commands) {
-            List<String> deviceIds = new ArrayList<>();
             for (ExecuteRequest.Inputs.Payload.Commands.Devices device : command.devices) {
-                deviceIds.add(device.id);
-                try {
-                    states = database.execute(userId, device.id, command.execution[0]);
-                    successfulDevices.add(device.id);
-                } catch (Exception e) {
-                    if (e.getMessage().equals("pinNeeded")) {
-                        ExecuteResponse.Payload.Commands failedDevice =
-                            new ExecuteResponse.Payload.Commands();
-                        failedDevice.ids = new String[]{device.id};
-                        failedDevice.status = "ERROR";
-                        failedDevice.setErrorCode("challengeNeeded");
-                        failedDevice.setChallengeNeeded(new HashMap<String, String>() {{
-                            put("type", "pinNeeded");
-                        }});
-                        failedDevice.setErrorCode(e.getMessage());
-                        commandsResponse.add(failedDevice);
-                        continue;
-                    }
-                    if (e.getMessage().equals("challengeFailedPinNeeded")) {
-                        ExecuteResponse.Payload.Commands failedDevice =
-                            new ExecuteResponse.Payload.Commands();
-                        failedDevice.ids = new String[]{device.id};
-                        failedDevice.status = "ERROR";
-                        failedDevice.setErrorCode("challengeNeeded");
-                        failedDevice.setChallengeNeeded(new HashMap<String, String>() {{
-                            put("type", "challengeFailedPinNeeded");
-                        }});
-                        failedDevice.setErrorCode(e.getMessage());
-                        commandsResponse.add(failedDevice);
-                        continue;
-                    }
-                    if (e.getMessage().equals("ackNeeded")) {
-                        ExecuteResponse.Payload.Commands failedDevice =
-                            new ExecuteResponse.Payload.Commands();
-                        failedDevice.ids = new String[]{device.id};
-                        failedDevice.status = "ERROR";
-                        failedDevice.setErrorCode("challengeNeeded");
-                        failedDevice.setChallengeNeeded(new HashMap<String, String>() {{
-                            put("type", "ackNeeded");
-                        }});
-                        failedDevice.setErrorCode(e.getMessage());
-                        commandsResponse.add(failedDevice);
-                        continue;
-                    }
-
-                    ExecuteResponse.Payload.Commands failedDevice =
-                            new ExecuteResponse.Payload.Commands();
-                    failedDevice.ids = new String[]{device.id};
-                    failedDevice.status = "ERROR";
-                    failedDevice.setErrorCode(e.getMessage());
-                    commandsResponse.add(failedDevice);
-                }
+                targetIds.add(device.id);
+                targetExecutions.add(command.execution[0]);
             }
         }
 
+        // Devices are executed in parallel, commands for the same device still run in order
+        List<ExecuteFanOut.Outcome<Map<String, Object>>> outcomes;
+        try {
+            outcomes = fanOut.run(targetIds, i ->
+                    database.execute(userId, targetIds.get(i), targetExecutions.get(i), batch));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+        for (int i = 0; i < targetIds.size(); i++) {
+            ExecuteFanOut.Outcome<Map<String, Object>> outcome = outcomes.get(i);
+            if (outcome.getError() == null) {
+                states = outcome.getValue();
+                successfulDevices.add(targetIds.get(i));
+            } else {
+                String errorCode = errorCode(targetIds.get(i), outcome.getError());
+                errorCodes.add(errorCode);
+                commandsResponse.add(failedCommand(targetIds.get(i), errorCode));
+            }
+        }
+
+        Map<String, String> failedWrites = new HashMap<>();
+        try {
+            failedWrites = database.commit(batch);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            for (String deviceId : batch.getUpdates().keySet()) {
+                failedWrites.put(deviceId, "transientError");
+            }
+        }
+        for (Map.Entry<String, String> failedWrite : failedWrites.entrySet()) {
+            successfulDevices.removeIf(id -> id.equals(failedWrite.getKey()));
+            errorCodes.add(failedWrite.getValue());
+            commandsResponse.add(failedCommand(failedWrite.getKey(), failedWrite.getValue()));
+        }
+
         ExecuteResponse.Payload.Commands successfulCommands =
                 new ExecuteResponse.Payload.Commands();
         successfulCommands.status = "SUCCESS";
@@ -209,20 +349,55 @@ public class MySmartHomeApp extends SmartHomeApp {
         return res;
     }
 
+    /**
+     * Returns the error code of a failed command. Any other failure, like a read from the store
+     * that timed out, is transient and a retry of the request may succeed.
+     */
+    private static String errorCode(String deviceId, Exception e) {
+        if (e instanceof ErrorCodeException) {
+            return ((ErrorCodeException) e).getErrorCode();
+        }
+        LOGGER.error("failed to execute command for device " + deviceId, e);
+        return "transientError";
+    }
+
+    private static ExecuteResponse.Payload.Commands failedCommand(String deviceId,
+            String errorCode) {
+        Metrics.error(errorCode);
+        ExecuteResponse.Payload.Commands failedDevice = new ExecuteResponse.Payload.Commands();
+        failedDevice.ids = new String[]{deviceId};
+        failedDevice.status = "ERROR";
+        if ("pinNeeded".equals(errorCode) || "challengeFailedPinNeeded".equals(errorCode)
+                || "ackNeeded".equals(errorCode)) {
+            failedDevice.setChallengeNeeded(new HashMap<String, String>() {{
+                put("type", errorCode);
+            }});
+        }
+        failedDevice.setErrorCode(errorCode);
+        return failedDevice;
+    }
+
     @NotNull
     @Override
     public void onDisconnect(DisconnectRequest disconnectRequest, Map<?, ?> headers) {
-        String userId = getUserId(headers);
-        database.setHomegraph(userId, false);
+        long start = System.nanoTime();
+        try {
+            String userId = getUserId(headers);
+            DeviceStore database = store.get();
+            database.setHomegraph(userId, false);
+            database.invalidateUser(userId);
+        } finally {
+            Metrics.latency(Metrics.INTENT_SECONDS, RequestLog.DISCONNECT).recordSince(start);
+        }
     }
 
     private String getUserId(Map<?, ?> headers) {
+        DeviceStore database = store.get();
         String userId = "";
         try {
             userId = database.getUserId((String) headers.get("authorization"));
         } catch (Exception e) {
-            LOGGER.error("USER NOT FOUND, check authorization header");
-            System.out.println(e.getMessage());
+            LOGGER.error("USER NOT FOUND, check authorization header: {}", e.getMessage());
             System.exit(1);
         }
         return userId;
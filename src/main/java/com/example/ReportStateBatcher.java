@@ -0,0 +1,227 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import com.google.home.graph.v1.HomeGraphApiServiceProto;
+import com.google.protobuf.Struct;
+import com.google.protobuf.Value;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Queues Report State updates and sends them to the Home Graph asynchronously.
+ *
+ * <p>Updates are collected for a short window and coalesced per device, the latest value of each
+ * state wins. Each flush sends one request per agent user covering all of its changed devices.
+ * Failed requests are retried with exponential backoff, up to a maximum number of attempts;
+ * newer updates that arrived in the meantime are never overwritten by a retry.
+ *
+ * <p>Only states that differ from the ones last reported for a device are sent, and nothing at
+ * all if none changed. Every {@code resyncMillis} the next report of a device sends all of its
+ * states, so that a lost update does not leave the Home Graph behind for good.
+ */
+public class ReportStateBatcher {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MySmartHomeApp.class);
+
+    private final Sender sender;
+    private final long windowMillis;
+    private final int maxAttempts;
+    private final long resyncMillis;
+    private final ScheduledExecutorService scheduler;
+    // agentUserId -> deviceId -> pending states
+    private final Map<String, Map<String, PendingDevice>> pending = new HashMap<>();
+    // agentUserId -> deviceId -> states last reported
+    private final Map<String, Map<String, ReportedDevice>> reported = new HashMap<>();
+    private final AtomicLong reportedStates = new AtomicLong();
+    private final AtomicLong unchanged = new AtomicLong();
+    private boolean flushScheduled;
+
+    public ReportStateBatcher(Sender sender, long windowMillis, int maxAttempts,
+            long resyncMillis) {
+        this.sender = sender;
+        this.windowMillis = windowMillis;
+        this.maxAttempts = maxAttempts;
+        this.resyncMillis = resyncMillis;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "report-state");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Queues the states of a device that changed since they were last reported, merging them into
+     * any states still waiting to be sent.
+     */
+    public void report(String agentUserId, String deviceId, Struct states) {
+        reportedStates.addAndGet(states.getFieldsCount());
+        synchronized (this) {
+            Map<String, ReportedDevice> devices =
+                    reported.computeIfAbsent(agentUserId, id -> new HashMap<>());
+            ReportedDevice last = devices.get(deviceId);
+            long now = System.currentTimeMillis();
+            Map<String, Value> changes;
+            if (last == null || now - last.resyncedAt >= resyncMillis) {
+                last = new ReportedDevice(now);
+                devices.put(deviceId, last);
+                changes = states.getFieldsMap();
+            } else {
+                changes = new LinkedHashMap<>();
+                for (Map.Entry<String, Value> state : states.getFieldsMap().entrySet()) {
+                    if (!state.getValue().equals(last.states.get(state.getKey()))) {
+                        changes.put(state.getKey(), state.getValue());
+                    }
+                }
+            }
+            unchanged.addAndGet(states.getFieldsCount() - changes.size());
+            if (changes.isEmpty()) {
+                return;
+            }
+            last.states.putAll(changes);
+            pending.computeIfAbsent(agentUserId, id -> new LinkedHashMap<>())
+                    .computeIfAbsent(deviceId, id -> new PendingDevice())
+                    .states.putAllFields(changes);
+            scheduleFlush(windowMillis);
+        }
+    }
+
+    /** Returns how many states were passed to {@link #report}. */
+    public long getStates() {
+        return reportedStates.get();
+    }
+
+    /** Returns how many of them were not sent because they had already been reported. */
+    public long getUnchanged() {
+        return unchanged.get();
+    }
+
+    /** Sends everything that is queued and stops the background thread. */
+    public void shutdown() {
+        flush();
+        scheduler.shutdown();
+    }
+
+    private void scheduleFlush(long delayMillis) {
+        if (!flushScheduled) {
+            flushScheduled = true;
+            scheduler.schedule(this::flush, delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void flush() {
+        Map<String, Map<String, PendingDevice>> batch;
+        synchronized (this) {
+            flushScheduled = false;
+            batch = new LinkedHashMap<>(pending);
+            pending.clear();
+        }
+        for (Map.Entry<String, Map<String, PendingDevice>> agentUser : batch.entrySet()) {
+            Struct.Builder devices = Struct.newBuilder();
+            for (Map.Entry<String, PendingDevice> device : agentUser.getValue().entrySet()) {
+                devices.putFields(device.getKey(), Value.newBuilder()
+                        .setStructValue(device.getValue().states).build());
+            }
+            HomeGraphApiServiceProto.ReportStateAndNotificationRequest request =
+                    HomeGraphApiServiceProto.ReportStateAndNotificationRequest.newBuilder()
+                            .setRequestId(UUID.randomUUID().toString())
+                            .setAgentUserId(agentUser.getKey())
+                            .setPayload(HomeGraphApiServiceProto.
+                                    StateAndNotificationPayload.newBuilder()
+                                    .setDevices(HomeGraphApiServiceProto
+                                            .ReportStateAndNotificationDevice.newBuilder()
+                                            .setStates(devices))).build();
+            try {
+                long start = System.nanoTime();
+                try {
+                    sender.send(request);
+                } finally {
+                    Metrics.latency(Metrics.HOME_GRAPH_SECONDS, "reportState")
+                            .recordSince(start);
+                }
+            } catch (Exception e) {
+                LOGGER.error("failed to report state of {} devices", agentUser.getValue().size(),
+                        e);
+                retry(agentUser.getKey(), agentUser.getValue());
+            }
+        }
+    }
+
+    private synchronized void retry(String agentUserId, Map<String, PendingDevice> failed) {
+        long attempts = 0;
+        Map<String, PendingDevice> queued =
+                pending.computeIfAbsent(agentUserId, id -> new LinkedHashMap<>());
+        for (Map.Entry<String, PendingDevice> device : failed.entrySet()) {
+            PendingDevice failedDevice = device.getValue();
+            if (++failedDevice.attempts >= maxAttempts) {
+                LOGGER.error("giving up reporting state of device {}", device.getKey());
+                // Unknown what the Home Graph has now, report all states next time
+                Map<String, ReportedDevice> devices = reported.get(agentUserId);
+                if (devices != null) {
+                    devices.remove(device.getKey());
+                }
+                continue;
+            }
+            PendingDevice newer = queued.get(device.getKey());
+            if (newer != null) {
+                // Keep the newer values, only resend the states they do not cover
+                for (Map.Entry<String, Value> state :
+                        failedDevice.states.getFieldsMap().entrySet()) {
+                    if (!newer.states.containsFields(state.getKey())) {
+                        newer.states.putFields(state.getKey(), state.getValue());
+                    }
+                }
+                newer.attempts = Math.max(newer.attempts, failedDevice.attempts);
+            } else {
+                queued.put(device.getKey(), failedDevice);
+            }
+            attempts = Math.max(attempts, failedDevice.attempts);
+        }
+        if (queued.isEmpty()) {
+            pending.remove(agentUserId);
+            return;
+        }
+        scheduleFlush(windowMillis << Math.min(attempts, 10));
+    }
+
+    public interface Sender {
+        void send(HomeGraphApiServiceProto.ReportStateAndNotificationRequest request)
+                throws Exception;
+    }
+
+    private static class ReportedDevice {
+        final Map<String, Value> states = new HashMap<>();
+        final long resyncedAt;
+
+        ReportedDevice(long resyncedAt) {
+            this.resyncedAt = resyncedAt;
+        }
+    }
+
+    private static class PendingDevice {
+        final Struct.Builder states = Struct.newBuilder();
+        int attempts;
+    }
+}
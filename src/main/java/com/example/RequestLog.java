@@ -0,0 +1,145 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Logs a sample of requests and their responses as one JSON record each. Secrets are redacted
+ * and bodies are cut off after {@code smarthome.requestLog.maxBodyChars} characters.
+ *
+ * <p>Sampling is off by default. {@code smarthome.requestLog.sampleRate} sets the fraction of
+ * requests that are logged, between 0 and 1, and {@code smarthome.requestLog.sampleRate.<intent>}
+ * overrides it for one intent, e.g. {@code smarthome.requestLog.sampleRate.EXECUTE}. Records go
+ * to the {@code com.example.RequestLog} logger, which log4j.xml sends through an asynchronous
+ * appender so request threads never wait for the console.
+ */
+public final class RequestLog {
+
+    public static final String SYNC = "SYNC";
+    public static final String QUERY = "QUERY";
+    public static final String EXECUTE = "EXECUTE";
+    public static final String DISCONNECT = "DISCONNECT";
+    public static final String CREATE = "create";
+    public static final String UPDATE = "update";
+    public static final String DELETE = "delete";
+    public static final String TOKEN = "token";
+    public static final String UNKNOWN = "unknown";
+
+    private static final String[] INTENTS = {SYNC, QUERY, EXECUTE, DISCONNECT};
+    private static final String[] INTENT_NAMES = {"action.devices.SYNC", "action.devices.QUERY",
+            "action.devices.EXECUTE", "action.devices.DISCONNECT"};
+    private static final String[] ALL_INTENTS =
+            {SYNC, QUERY, EXECUTE, DISCONNECT, CREATE, UPDATE, DELETE, TOKEN, UNKNOWN};
+    private static final String PROPERTY = "smarthome.requestLog.sampleRate";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RequestLog.class);
+    private static final Map<String, Double> SAMPLE_RATES = new HashMap<>();
+    private static final boolean ENABLED;
+    private static final int MAX_BODY_CHARS =
+            Integer.getInteger("smarthome.requestLog.maxBodyChars", 2048);
+    // A quoted JSON string, which may contain escaped quotes
+    private static final String STRING = "\"(?:[^\"\\\\]|\\\\.)*\"";
+    // Values of these JSON fields are never written to the log, whether they are strings or
+    // arrays like the values of a servlet parameter map
+    private static final Pattern SECRETS = Pattern.compile(
+            "(\"(?:access_token|refresh_token|client_secret|code|fakeAccessToken|authorization"
+                    + "|pin|tfa)\"\\s*:\\s*)(?:" + STRING + "|\\[(?:" + STRING + "|[^\\]\"])*\\])");
+
+    static {
+        double defaultRate = rate(System.getProperty(PROPERTY), 0);
+        boolean enabled = false;
+        for (String intent : ALL_INTENTS) {
+            double rate = rate(System.getProperty(PROPERTY + "." + intent), defaultRate);
+            SAMPLE_RATES.put(intent, rate);
+            enabled |= rate > 0;
+        }
+        ENABLED = enabled && LOGGER.isInfoEnabled();
+    }
+
+    private RequestLog() {
+    }
+
+    /**
+     * Returns the intent of a fulfillment request, one of the constants of this class. Only looks
+     * at the raw body, so nothing is parsed or allocated.
+     */
+    public static String intentOf(String body) {
+        for (int i = 0; i < INTENT_NAMES.length; i++) {
+            if (body.contains(INTENT_NAMES[i])) {
+                return INTENTS[i];
+            }
+        }
+        return UNKNOWN;
+    }
+
+    /** Decides whether a request of {@code intent} is logged. Never allocates. */
+    public static boolean isSampled(String intent) {
+        if (!ENABLED) {
+            return false;
+        }
+        Double rate = SAMPLE_RATES.get(intent);
+        if (rate == null || rate <= 0) {
+            return false;
+        }
+        return rate >= 1 || ThreadLocalRandom.current().nextDouble() < rate;
+    }
+
+    /**
+     * Writes the record of a sampled request. {@code request} and {@code response} are either
+     * JSON strings or objects that are serialized first.
+     */
+    public static void log(String intent, Object request, Object response, long startNanos) {
+        Map<String, Object> record = new LinkedHashMap<>();
+        record.put("intent", intent);
+        record.put("durationMs",
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+        record.put("request", body(request));
+        record.put("response", body(response));
+        LOGGER.info(Json.GSON.toJson(record));
+    }
+
+    static String body(Object value) {
+        if (value == null) {
+            return null;
+        }
+        String json = value instanceof String ? (String) value : Json.GSON.toJson(value);
+        String redacted = SECRETS.matcher(json).replaceAll("$1\"<redacted>\"");
+        if (redacted.length() <= MAX_BODY_CHARS) {
+            return redacted;
+        }
+        return redacted.substring(0, MAX_BODY_CHARS) + "...(" + redacted.length() + " chars)";
+    }
+
+    private static double rate(String value, double defaultRate) {
+        if (value == null) {
+            return defaultRate;
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return defaultRate;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Debounces Request Sync calls per agent user. A burst of device changes results in a single
+ * call once no further change has been requested for a quiet period, or once the first request
+ * of the burst has waited for the maximum delay.
+ */
+public class RequestSyncScheduler {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MySmartHomeApp.class);
+
+    private final Sender sender;
+    private final long quietMillis;
+    private final long maxDelayMillis;
+    private final ScheduledExecutorService scheduler;
+    private final Map<String, PendingSync> pending = new HashMap<>();
+    private final AtomicLong requested = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong suppressed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    public RequestSyncScheduler(Sender sender, long quietMillis, long maxDelayMillis) {
+        this.sender = sender;
+        this.quietMillis = quietMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "request-sync");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /** Requests a sync for {@code agentUserId}, coalescing it with any sync still pending. */
+    public synchronized void requestSync(String agentUserId) {
+        requested.incrementAndGet();
+        long now = System.currentTimeMillis();
+        PendingSync sync = pending.get(agentUserId);
+        if (sync == null) {
+            sync = new PendingSync(now);
+            pending.put(agentUserId, sync);
+        } else {
+            sync.future.cancel(false);
+            suppressed.incrementAndGet();
+        }
+        long delay = Math.min(quietMillis, sync.firstRequestedAt + maxDelayMillis - now);
+        sync.future = scheduler.schedule(() -> send(agentUserId), Math.max(delay, 0),
+                TimeUnit.MILLISECONDS);
+    }
+
+    /** Sends every pending sync right away. */
+    public void flush() {
+        String[] agentUserIds;
+        synchronized (this) {
+            agentUserIds = pending.keySet().toArray(new String[0]);
+            for (PendingSync sync : pending.values()) {
+                sync.future.cancel(false);
+            }
+        }
+        for (String agentUserId : agentUserIds) {
+            send(agentUserId);
+        }
+    }
+
+    public void shutdown() {
+        flush();
+        scheduler.shutdown();
+    }
+
+    private void send(String agentUserId) {
+        synchronized (this) {
+            if (pending.remove(agentUserId) == null) {
+                // Already sent by a flush
+                return;
+            }
+        }
+        try {
+            long start = System.nanoTime();
+            try {
+                sender.send(agentUserId);
+            } finally {
+                Metrics.latency(Metrics.HOME_GRAPH_SECONDS, "requestSync").recordSince(start);
+            }
+            sent.incrementAndGet();
+        } catch (Exception e) {
+            failed.incrementAndGet();
+            LOGGER.error("request sync failed for {}", agentUserId, e);
+        }
+    }
+
+    public long getRequested() {
+        return requested.get();
+    }
+
+    public long getSent() {
+        return sent.get();
+    }
+
+    /** Returns how many requests were merged into a later one instead of being sent. */
+    public long getSuppressed() {
+        return suppressed.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public interface Sender {
+        void send(String agentUserId) throws Exception;
+    }
+
+    private static class PendingSync {
+        final long firstRequestedAt;
+        ScheduledFuture<?> future;
+
+        PendingSync(long firstRequestedAt) {
+            this.firstRequestedAt = firstRequestedAt;
+        }
+    }
+}
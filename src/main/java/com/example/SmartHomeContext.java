@@ -0,0 +1,242 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import com.google.actions.api.smarthome.SmartHomeApp;
+import com.google.auth.oauth2.GoogleCredentials;
+import com.google.cloud.firestore.Firestore;
+import com.google.firebase.FirebaseApp;
+import com.google.firebase.FirebaseOptions;
+import com.google.firebase.cloud.FirestoreClient;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Everything that is expensive to set up and shared by all servlets of an instance: the service
+ * account credentials, the Actions app and the Firestore client. Each part is created on first
+ * use, or ahead of the first request by {@link #warmUp()}.
+ */
+public class SmartHomeContext {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MySmartHomeApp.class);
+    private static final String SERVICE_ACCOUNT_KEY = "WEB-INF/smart-home-key.json";
+    private static final String DATABASE_URL = "";
+
+    private final Lazy<GoogleCredentials> credentials =
+            new Lazy<>("credentials", SmartHomeContext::loadCredentials);
+    private final Lazy<SmartHomeApp> actionsApp = new Lazy<>("actionsApp", () -> {
+        SmartHomeApp app = new MySmartHomeApp();
+        GoogleCredentials credentials = getCredentials();
+        if (credentials != null) {
+            app.setCredentials(credentials);
+        }
+        return app;
+    });
+    private final Lazy<Firestore> firestore = new Lazy<>("firestore", () -> {
+        String emulatorHost = FirestoreEmulator.getHost();
+        if (emulatorHost != null) {
+            LOGGER.info("using the Firestore emulator at {}", emulatorHost);
+            return FirestoreEmulator.connect(emulatorHost,
+                    System.getProperty("smarthome.firestore.projectId", "smart-home-local"));
+        }
+        GoogleCredentials credentials = getCredentials();
+        if (credentials == null) {
+            throw new IllegalStateException(
+                    "invalid service account credentials, see README");
+        }
+        FirebaseOptions options = new FirebaseOptions.Builder().setCredentials(credentials)
+                .setDatabaseUrl(DATABASE_URL).build();
+        FirebaseApp.initializeApp(options);
+        return FirestoreClient.getFirestore();
+    });
+    private final Lazy<DeviceStore> store = new Lazy<>("store",
+            () -> "memory".equals(System.getProperty("smarthome.store"))
+                    ? InMemoryDeviceStore.withDefaultUser()
+                    : MyDataStore.getInstance());
+    private final Lazy<HomeGraphStub> homeGraphStub = new Lazy<>("homeGraphStub",
+            () -> new HomeGraphStub(Long.getLong("smarthome.homegraph.stubLatencyMillis", 50)));
+    private final Lazy<ReportStateBatcher> reportStateBatcher =
+            new Lazy<>("reportStateBatcher", () -> {
+                ReportStateBatcher batcher = new ReportStateBatcher(
+                        HomeGraphStub.isEnabled()
+                                ? homeGraphStub.get()::reportState
+                                : getActionsApp()::reportState,
+                        Long.getLong("smarthome.reportState.windowMillis", 250),
+                        Integer.getInteger("smarthome.reportState.maxAttempts", 5),
+                        Long.getLong("smarthome.reportState.resyncMillis", 60 * 60 * 1000L));
+                Metrics.gauge("smarthome_report_state_states_total",
+                        "Device states passed to Report State", true, batcher::getStates);
+                Metrics.gauge("smarthome_report_state_unchanged_total",
+                        "Device states not sent because they had already been reported", true,
+                        batcher::getUnchanged);
+                return batcher;
+            });
+    private final Lazy<RequestSyncScheduler> requestSyncScheduler =
+            new Lazy<>("requestSyncScheduler", () -> {
+                RequestSyncScheduler scheduler = new RequestSyncScheduler(
+                        HomeGraphStub.isEnabled()
+                                ? homeGraphStub.get()::requestSync
+                                : getActionsApp()::requestSync,
+                        Long.getLong("smarthome.requestSync.quietMillis", 2000),
+                        Long.getLong("smarthome.requestSync.maxDelayMillis", 10000));
+                Metrics.gauge("smarthome_request_sync_requested_total",
+                        "Request Sync calls asked for by device changes", true,
+                        scheduler::getRequested);
+                Metrics.gauge("smarthome_request_sync_sent_total",
+                        "Request Sync calls sent to Home Graph", true, scheduler::getSent);
+                Metrics.gauge("smarthome_request_sync_suppressed_total",
+                        "Request Sync calls merged into a pending one", true,
+                        scheduler::getSuppressed);
+                Metrics.gauge("smarthome_request_sync_failed_total",
+                        "Request Sync calls that failed", true, scheduler::getFailed);
+                return scheduler;
+            });
+    private final AtomicBoolean firstResponse = new AtomicBoolean();
+
+    private SmartHomeContext() {
+    }
+
+    public static SmartHomeContext getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    /** Returns the service account credentials, or null if they could not be loaded. */
+    public GoogleCredentials getCredentials() {
+        return credentials.get();
+    }
+
+    public SmartHomeApp getActionsApp() {
+        return actionsApp.get();
+    }
+
+    public Firestore getFirestore() {
+        return firestore.get();
+    }
+
+    /** Returns the device store, see {@link DeviceStore}. */
+    public DeviceStore getStore() {
+        return store.get();
+    }
+
+    public ReportStateBatcher getReportStateBatcher() {
+        return reportStateBatcher.get();
+    }
+
+    public RequestSyncScheduler getRequestSyncScheduler() {
+        return requestSyncScheduler.get();
+    }
+
+    /**
+     * Creates everything a request needs and opens the connections to Google, so that the first
+     * real request of a new instance does not pay for it.
+     */
+    public void warmUp() {
+        long start = System.currentTimeMillis();
+        GoogleCredentials credentials = getCredentials();
+        if (credentials != null) {
+            try {
+                // Fetches the first access token
+                credentials.refreshIfExpired();
+            } catch (IOException e) {
+                LOGGER.warn("failed to refresh credentials during warmup: {}", e.getMessage());
+            }
+        }
+        getActionsApp();
+        getRequestSyncScheduler();
+        getReportStateBatcher();
+        try {
+            // Opens the Firestore channel and caches the user of the default access token
+            getStore().getUserId(null);
+        } catch (Exception e) {
+            LOGGER.warn("failed to prime the device store during warmup: {}", e.getMessage());
+        }
+        LOGGER.info("warmup took {} ms, {} ms after JVM start",
+                System.currentTimeMillis() - start, uptimeMillis());
+    }
+
+    /** Logs how long it took this instance to answer its first request. */
+    public void recordResponse() {
+        if (firstResponse.compareAndSet(false, true)) {
+            LOGGER.info("first response sent {} ms after JVM start", uptimeMillis());
+        }
+    }
+
+    /** Sends pending Request Sync calls and stops the background threads. */
+    public void shutdown() {
+        if (requestSyncScheduler.isCreated()) {
+            requestSyncScheduler.get().shutdown();
+        }
+        if (reportStateBatcher.isCreated()) {
+            reportStateBatcher.get().shutdown();
+        }
+    }
+
+    private static GoogleCredentials loadCredentials() {
+        try (InputStream serviceAccount = new FileInputStream(SERVICE_ACCOUNT_KEY)) {
+            return GoogleCredentials.fromStream(serviceAccount);
+        } catch (IOException e) {
+            LOGGER.error("couldn't load credentials: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    private static long uptimeMillis() {
+        return ManagementFactory.getRuntimeMXBean().getUptime();
+    }
+
+    private static class Holder {
+        static final SmartHomeContext INSTANCE = new SmartHomeContext();
+    }
+
+    /** A value that is created once, on first use, and logs how long that took. */
+    private static class Lazy<T> {
+        private final String name;
+        private final Supplier<T> factory;
+        private volatile boolean created;
+        private T value;
+
+        Lazy(String name, Supplier<T> factory) {
+            this.name = name;
+            this.factory = factory;
+        }
+
+        T get() {
+            if (!created) {
+                synchronized (this) {
+                    if (!created) {
+                        long start = System.currentTimeMillis();
+                        value = factory.get();
+                        created = true;
+                        LOGGER.info("created {} in {} ms", name,
+                                System.currentTimeMillis() - start);
+                    }
+                }
+            }
+            return value;
+        }
+
+        boolean isCreated() {
+            return created;
+        }
+    }
+}
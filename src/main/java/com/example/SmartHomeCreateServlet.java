@@ -17,9 +17,8 @@
 package com.example;
 
 
-import com.google.actions.api.smarthome.SmartHomeApp;
-import com.google.auth.oauth2.GoogleCredentials;
-import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -27,13 +26,11 @@ import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.Set;
 
 /**
  * Handles request received via HTTP POST and delegates it to your Actions app. See: [Request
@@ -43,35 +40,86 @@ import java.util.stream.Collectors;
 @WebServlet(name = "smarthomeCreate", urlPatterns = "/smarthome/create")
 public class SmartHomeCreateServlet extends HttpServlet {
     private static final Logger LOGGER = LoggerFactory.getLogger(MySmartHomeApp.class);
-    private static MyDataStore database = MyDataStore.getInstance();
 
-    // Setup creds for requestSync
-    private final SmartHomeApp actionsApp = new MySmartHomeApp();
-
-    {
+    @Override protected void doPost(HttpServletRequest req, HttpServletResponse res)
+            throws IOException {
+        long start = System.nanoTime();
+        if (isBulk(req)) {
+            doBulkPost(req, res, start);
+            return;
+        }
+        DeviceRequests.Create device;
         try {
-            InputStream serviceAccount = new FileInputStream("WEB-INF/smart-home-key.json");
-            GoogleCredentials credentials = GoogleCredentials.fromStream(serviceAccount);
-            actionsApp.setCredentials(credentials);
-        } catch (Exception e) {
-            LOGGER.error("couldn't load credentials");
+            device = Json.read(req, DeviceRequests.Create.class);
+        } catch (JsonParseException e) {
+            LOGGER.error("invalid create request", e);
+            res.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        }
+        if (device.getUserId() == null || device.getData() == null) {
+            res.sendError(HttpServletResponse.SC_BAD_REQUEST, "userId and data are required");
+            return;
+        }
+        DeviceStore.getInstance().addDevice(device.getUserId(), device.getData());
+        MySmartHomeApp.invalidateSync(device.getUserId());
+        // Device changes of a burst are synced together
+        SmartHomeContext.getInstance().getRequestSyncScheduler()
+                .requestSync(MySmartHomeApp.AGENT_USER_ID);
+
+        res.setHeader("Access-Control-Allow-Origin", "*");
+        res.setContentType("text/plain");
+        res.getWriter().println("OK");
+        if (RequestLog.isSampled(RequestLog.CREATE)) {
+            RequestLog.log(RequestLog.CREATE, device, "OK", start);
         }
     }
 
-    @Override protected void doPost(HttpServletRequest req, HttpServletResponse res)
+    /**
+     * Adds all devices of a JSON array or newline-delimited JSON body and responds with the result
+     * of every device, in the order they were sent.
+     */
+    private void doBulkPost(HttpServletRequest req, HttpServletResponse res, long start)
             throws IOException {
-        String body = req.getReader().lines().collect(Collectors.joining());
-        LOGGER.info("doPost, body = {}", body);
-        Map<String, String> headerMap = getHeaderMap(req);
-        Map<String, Object> device = new Gson().fromJson(body, HashMap.class);
-        database.addDevice((String) device.get("userId"), (Map<String, Object>) device.get("data"));
-        actionsApp.requestSync("1836.15267389");
-
+        BulkProvisioner provisioner = new BulkProvisioner(DeviceStore.getInstance(), Json.GSON,
+                Integer.getInteger("smarthome.bulk.chunkSize", DeviceStore.MAX_BATCH_WRITES),
+                Integer.getInteger("smarthome.bulk.maxInFlight", 4));
+        List<BulkProvisioner.DeviceResult> results;
+        try {
+            results = provisioner.provision(new JsonReader(Json.reader(req)));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            res.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return;
+        } finally {
+            // Devices written before the request failed are synced as well
+            Set<String> userIds = provisioner.getUserIds();
+            for (String userId : userIds) {
+                MySmartHomeApp.invalidateSync(userId);
+            }
+            if (!userIds.isEmpty()) {
+                SmartHomeContext.getInstance().getRequestSyncScheduler()
+                        .requestSync(MySmartHomeApp.AGENT_USER_ID);
+            }
+        }
+        LOGGER.debug("bulk create, {} devices", results.size());
 
         res.setHeader("Access-Control-Allow-Origin", "*");
-        res.setContentType("text/plain");
-        res.getWriter().println("OK");
+        if (provisioner.getError() != null) {
+            LOGGER.error("invalid bulk create request: " + provisioner.getError());
+            res.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+        }
+        Map<String, Object> response = new HashMap<>();
+        response.put("results", results);
+        Json.write(res, response);
+        if (RequestLog.isSampled(RequestLog.CREATE)) {
+            RequestLog.log(RequestLog.CREATE, "bulk", response, start);
+        }
+    }
 
+    private static boolean isBulk(HttpServletRequest req) {
+        String contentType = req.getContentType();
+        return "true".equals(req.getParameter("bulk"))
+                || (contentType != null && contentType.startsWith("application/x-ndjson"));
     }
 
     @Override protected void doGet(HttpServletRequest request, HttpServletResponse response)
@@ -89,15 +137,4 @@ public class SmartHomeCreateServlet extends HttpServlet {
                 "X-Requested-With,Content-Type,Accept,Origin");
     }
 
-
-    private Map<String, String> getHeaderMap(HttpServletRequest req) {
-        Map<String, String> headerMap = new HashMap<>();
-        Enumeration headerNames = req.getHeaderNames();
-        while (headerNames.hasMoreElements()) {
-            String name = (String) headerNames.nextElement();
-            String val = req.getHeader(name);
-            headerMap.put(name, val);
-        }
-        return headerMap;
-    }
 }
@@ -17,9 +17,7 @@
 package com.example;
 
 
-import com.google.actions.api.smarthome.SmartHomeApp;
-import com.google.auth.oauth2.GoogleCredentials;
-import org.json.JSONObject;
+import com.google.gson.JsonParseException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -27,13 +25,7 @@ import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.util.Enumeration;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.stream.Collectors;
 
 /**
  * Handles request received via HTTP POST and delegates it to your Actions app. See: [Request
@@ -43,33 +35,33 @@ import java.util.stream.Collectors;
 @WebServlet(name = "smarthomeDelete", urlPatterns = "/smarthome/delete")
 public class SmartHomeDeleteServlet extends HttpServlet {
     private static final Logger LOGGER = LoggerFactory.getLogger(MySmartHomeApp.class);
-    private static MyDataStore database = MyDataStore.getInstance();
-
-    private final SmartHomeApp actionsApp = new MySmartHomeApp();
-
-    {
-        try {
-            InputStream serviceAccount = new FileInputStream("WEB-INF/smart-home-key.json");
-            GoogleCredentials credentials = GoogleCredentials.fromStream(serviceAccount);
-            actionsApp.setCredentials(credentials);
-        } catch (Exception e) {
-            LOGGER.error("couldn't load credentials");
-        }
-    }
 
     @Override
     protected void doPost(HttpServletRequest req, HttpServletResponse res) throws IOException {
-        String body = req.getReader().lines().collect(Collectors.joining());
-        LOGGER.info("doPost, body = {}", body);
-        Map<String, String> headerMap = getHeaderMap(req);
-        JSONObject bodyJson = new JSONObject(body);
-        database.deleteDevice(bodyJson.getString("userId"),
-                bodyJson.getString("deviceId"));
-        actionsApp.requestSync("1836.15267389");
+        long start = System.nanoTime();
+        DeviceRequests.Delete device;
+        try {
+            device = Json.read(req, DeviceRequests.Delete.class);
+        } catch (JsonParseException e) {
+            LOGGER.error("invalid delete request", e);
+            res.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        }
+        if (device.getUserId() == null || device.getDeviceId() == null) {
+            res.sendError(HttpServletResponse.SC_BAD_REQUEST, "userId and deviceId are required");
+            return;
+        }
+        DeviceStore.getInstance().deleteDevice(device.getUserId(), device.getDeviceId());
+        MySmartHomeApp.invalidateSync(device.getUserId());
+        // Device changes of a burst are synced together
+        SmartHomeContext.getInstance().getRequestSyncScheduler()
+                .requestSync(MySmartHomeApp.AGENT_USER_ID);
         res.setHeader("Access-Control-Allow-Origin", "*");
         res.setContentType("text/plain");
         res.getWriter().println("OK");
-
+        if (RequestLog.isSampled(RequestLog.DELETE)) {
+            RequestLog.log(RequestLog.DELETE, device, "OK", start);
+        }
     }
 
     @Override
@@ -88,15 +80,4 @@ public class SmartHomeDeleteServlet extends HttpServlet {
                 "X-Requested-With,Content-Type,Accept,Origin");
 
     }
-
-    private Map<String, String> getHeaderMap(HttpServletRequest req) {
-        Map<String, String> headerMap = new HashMap<>();
-        Enumeration headerNames = req.getHeaderNames();
-        while (headerNames.hasMoreElements()) {
-            String name = (String) headerNames.nextElement();
-            String val = req.getHeader(name);
-            headerMap.put(name, val);
-        }
-        return headerMap;
-    }
 }
@@ -17,54 +17,57 @@
 package com.example;
 
 import com.google.actions.api.smarthome.SmartHomeApp;
-import com.google.auth.oauth2.GoogleCredentials;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.io.FileInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.ExecutionException;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Handles request received via HTTP POST and delegates it to your Actions app. See: [Request
  * handling in Google App
  * Engine](https://cloud.google.com/appengine/docs/standard/java/how-requests-are-handled).
+ *
+ * <p>Requests are processed asynchronously: the body is read and the response written with
+ * non-blocking I/O, and the intent is handled on a separate pool, so container threads are never
+ * held while Firestore is being waited for.
  */
-@WebServlet(name = "smarthome", urlPatterns = "/smarthome")
+@WebServlet(name = "smarthome", urlPatterns = "/smarthome", asyncSupported = true)
 public class SmartHomeServlet extends HttpServlet {
     private static final Logger LOG = LoggerFactory.getLogger(MySmartHomeApp.class);
-    private final SmartHomeApp actionsApp = new MySmartHomeApp();
-
-    {
-        try {
-            InputStream serviceAccount = new FileInputStream("WEB-INF/smart-home-key.json");
-            GoogleCredentials credentials = GoogleCredentials.fromStream(serviceAccount);
-            actionsApp.setCredentials(credentials);
-        } catch (Exception e) {
-            LOG.error("couldn't load credentials");
-        }
-    }
+    private static final long TIMEOUT_MILLIS =
+            Long.getLong("smarthome.fulfillment.timeoutMillis", 30000);
+    private static final int MAX_BODY_BYTES =
+            Integer.getInteger("smarthome.fulfillment.maxBodyBytes", 1 << 20);
+    private static final ExecutorService fulfillmentPool = Threading.newExecutor("fulfillment",
+            Integer.getInteger("smarthome.fulfillment.threads", 64),
+            Integer.getInteger("smarthome.fulfillment.queueSize", 1000));
+    private final SmartHomeApp actionsApp = SmartHomeContext.getInstance().getActionsApp();
 
     @Override
     protected void doPost(HttpServletRequest req, HttpServletResponse res) throws IOException {
-        String body = req.getReader().lines().collect(Collectors.joining());
-        LOG.info("doPost, body = {}", body);
-        Map<String, String> headerMap = getHeaderMap(req);
-        try {
-            String response = actionsApp.handleRequest(body, headerMap).get();
-            writeResponse(res, response);
-        } catch (ExecutionException | InterruptedException e) {
-            e.printStackTrace();
-        }
+        Exchange exchange = new Exchange(req, res);
+        req.getInputStream().setReadListener(exchange);
     }
 
     @Override
@@ -78,14 +81,9 @@ public class SmartHomeServlet extends HttpServlet {
                                 "request to respond with Action response.");
     }
 
-    private void writeResponse(HttpServletResponse res, String asJson) {
-        try {
-            System.out.println("response = " + asJson);
-            res.getWriter().write(asJson);
-            res.getWriter().flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+    @Override
+    public void destroy() {
+        fulfillmentPool.shutdown();
     }
 
     private Map<String, String> getHeaderMap(HttpServletRequest req) {
@@ -98,4 +96,209 @@ public class SmartHomeServlet extends HttpServlet {
         }
         return headerMap;
     }
-}
\ No newline at end of file
+
+    private static String error(String message) {
+        return "{\"error\":\"" + message + "\"}";
+    }
+
+    /** One request, from reading its body until its response has been written. */
+    private class Exchange implements ReadListener, WriteListener, AsyncListener {
+        private final long start = System.nanoTime();
+        private final AsyncContext async;
+        private final HttpServletResponse res;
+        private final ServletInputStream in;
+        private final Map<String, String> headers;
+        private final String encoding;
+        private final ByteArrayOutputStream body;
+        private final byte[] buffer = new byte[8192];
+        // Set once a response has been chosen, by the handler, an error or the timeout
+        private final AtomicBoolean responded = new AtomicBoolean();
+        private volatile String intent = RequestLog.UNKNOWN;
+        private String request;
+        private byte[] response;
+        // Guarded by this, written bytes of the response and whether the timeout stopped them
+        private int written;
+        private boolean timedOut;
+
+        Exchange(HttpServletRequest req, HttpServletResponse res) throws IOException {
+            this.async = req.startAsync();
+            this.async.setTimeout(TIMEOUT_MILLIS);
+            this.async.addListener(this);
+            this.res = res;
+            this.in = req.getInputStream();
+            this.headers = getHeaderMap(req);
+            this.encoding = req.getCharacterEncoding();
+            int length = req.getContentLength();
+            this.body = new ByteArrayOutputStream(length > 0 ? Math.min(length, 1 << 16) : 1024);
+        }
+
+        @Override
+        public void onDataAvailable() throws IOException {
+            int read;
+            while (in.isReady() && (read = in.read(buffer)) != -1) {
+                if (body.size() + read > MAX_BODY_BYTES) {
+                    // The rest is read and dropped, the request is answered right away
+                    respond(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, error("tooLarge"));
+                } else if (!responded.get()) {
+                    body.write(buffer, 0, read);
+                }
+            }
+        }
+
+        @Override
+        public void onAllDataRead() {
+            if (responded.get()) {
+                return;
+            }
+            // The Actions library only takes the request as a String
+            try {
+                request = encoding == null ? body.toString("UTF-8") : body.toString(encoding);
+            } catch (UnsupportedEncodingException e) {
+                LOG.error("unsupported request encoding {}", encoding);
+                respond(HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE, error("badEncoding"));
+                return;
+            }
+            intent = RequestLog.intentOf(request);
+            CompletableFuture<String> handled;
+            try {
+                handled = CompletableFuture.supplyAsync(
+                        () -> actionsApp.handleRequest(request, headers), fulfillmentPool)
+                        .thenCompose(future -> future);
+            } catch (RejectedExecutionException e) {
+                LOG.warn("rejected {} request, all fulfillment threads are busy", intent);
+                respond(HttpServletResponse.SC_SERVICE_UNAVAILABLE, error("overloaded"));
+                return;
+            }
+            handled.whenComplete((json, error) -> {
+                if (error != null) {
+                    LOG.error("failed to handle {} request", intent, error);
+                    respond(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, error("internal"));
+                } else {
+                    respond(HttpServletResponse.SC_OK, json);
+                }
+            });
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            LOG.error("failed to read or write {} request", intent, t);
+            if (!respond(HttpServletResponse.SC_BAD_REQUEST, error("badRequest"))) {
+                async.complete();
+            }
+        }
+
+        @Override
+        public void onWritePossible() throws IOException {
+            ServletOutputStream out = res.getOutputStream();
+            synchronized (this) {
+                if (timedOut) {
+                    return;
+                }
+                while (written < response.length && out.isReady()) {
+                    int length = Math.min(buffer.length, response.length - written);
+                    out.write(response, written, length);
+                    written += length;
+                }
+            }
+            if (written == response.length && out.isReady()) {
+                async.complete();
+            }
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            LOG.error("{} request timed out after {} ms", intent, TIMEOUT_MILLIS);
+            // Unless the request is completed before this returns, the container sends its own
+            // error response, so the body is written right away instead of by a WriteListener
+            if (begin(HttpServletResponse.SC_GATEWAY_TIMEOUT, error("timeout"))) {
+                try {
+                    res.getOutputStream().write(response);
+                } catch (IOException e) {
+                    LOG.error("failed to write {} timeout response", intent, e);
+                }
+            } else {
+                synchronized (this) {
+                    timedOut = true;
+                    if (written < response.length) {
+                        abortOrReplace();
+                    }
+                }
+            }
+            async.complete();
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            LOG.error("{} request failed", intent, event.getThrowable());
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+        }
+
+        /**
+         * Sends the timeout response instead of a chosen one that is not written yet. One that is
+         * partly sent is left short of its content length, so that the container closes the
+         * connection and the client sees a failed request instead of a truncated one.
+         */
+        private void abortOrReplace() {
+            try {
+                ServletOutputStream out = res.getOutputStream();
+                if (written == 0 && !res.isCommitted() && out.isReady()) {
+                    response = error("timeout").getBytes(StandardCharsets.UTF_8);
+                    res.setStatus(HttpServletResponse.SC_GATEWAY_TIMEOUT);
+                    res.setContentLength(response.length);
+                    Metrics.increment(Metrics.ERRORS_TOTAL,
+                            "http" + HttpServletResponse.SC_GATEWAY_TIMEOUT);
+                    out.write(response);
+                    written = response.length;
+                    return;
+                }
+            } catch (IOException e) {
+                LOG.error("failed to write {} timeout response", intent, e);
+            }
+            LOG.error("aborted {} response after {} of {} bytes", intent, written,
+                    response.length);
+        }
+
+        /** Starts writing a response, unless one was started before. */
+        private boolean respond(int status, String json) {
+            if (!begin(status, json)) {
+                return false;
+            }
+            try {
+                res.getOutputStream().setWriteListener(this);
+            } catch (IOException | IllegalStateException e) {
+                LOG.error("failed to write {} response", intent, e);
+                async.complete();
+            }
+            return true;
+        }
+
+        /** Chooses the response and sets its headers, unless one was chosen before. */
+        private boolean begin(int status, String json) {
+            if (!responded.compareAndSet(false, true)) {
+                return false;
+            }
+            response = json.getBytes(StandardCharsets.UTF_8);
+            res.setStatus(status);
+            res.setContentType("application/json");
+            res.setCharacterEncoding("UTF-8");
+            res.setContentLength(response.length);
+            if (status == HttpServletResponse.SC_OK) {
+                Metrics.latency(Metrics.REQUEST_SECONDS, intent).recordSince(start);
+                SmartHomeContext.getInstance().recordResponse();
+                if (RequestLog.isSampled(intent)) {
+                    RequestLog.log(intent, request, json, start);
+                }
+            } else {
+                Metrics.increment(Metrics.ERRORS_TOTAL, "http" + status);
+            }
+            return true;
+        }
+    }
+}
@@ -16,14 +16,7 @@
 
 package com.example;
 
-import com.google.actions.api.smarthome.SmartHomeApp;
-import com.google.auth.oauth2.GoogleCredentials;
-import com.google.gson.Gson;
-import com.google.home.graph.v1.HomeGraphApiServiceProto;
-import com.google.protobuf.Struct;
-import com.google.protobuf.Value;
-import com.google.protobuf.util.JsonFormat;
-import org.json.JSONObject;
+import com.google.gson.JsonParseException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -31,14 +24,9 @@ import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.util.Enumeration;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
-import java.util.stream.Collectors;
 
 /**
  * Handles request received via HTTP POST and delegates it to your Actions app. See: [Request
@@ -48,61 +36,48 @@ import java.util.stream.Collectors;
 @WebServlet(name = "smarthomeUpdate", urlPatterns = "/smarthome/update")
 public class SmartHomeUpdateServlet extends HttpServlet {
     private static final Logger LOGGER = LoggerFactory.getLogger(MySmartHomeApp.class);
-    private static MyDataStore database = MyDataStore.getInstance();
-    private final SmartHomeApp actionsApp = new MySmartHomeApp();
-
-    {
-        try {
-            InputStream serviceAccount = new FileInputStream("WEB-INF/smart-home-key.json");
-            GoogleCredentials credentials = GoogleCredentials.fromStream(serviceAccount);
-            actionsApp.setCredentials(credentials);
-        } catch (Exception e) {
-            LOGGER.error("couldn't load credentials");
-        }
-    }
 
     @Override protected void doPost(HttpServletRequest req, HttpServletResponse res)
             throws IOException {
-        String body = req.getReader().lines().collect(Collectors.joining());
-        JSONObject bodyJson = new JSONObject(body);
-        String userId = bodyJson.getString("userId");
-        String deviceId = bodyJson.getString("deviceId");
-        LOGGER.info("doPost, body = {}", body);
-        String deviceName = bodyJson.has("name") ? bodyJson.getString("name") : null;
-        String deviceNickname = bodyJson.has("nickname") ? bodyJson.getString("nickname")
-                : null;
-        Map<String, Object> deviceStates = bodyJson.has("states") ?
-                new Gson().fromJson(bodyJson.getJSONObject("states").toString(), HashMap.class) :
-                null;
-        String errorCode = bodyJson.has("errorCode") ? bodyJson.getString("errorCode") : null;
-        String tfa = bodyJson.has("tfa") ? bodyJson.getString("tfa") : null;
+        long start = System.nanoTime();
+        DeviceRequests.Update update;
         try {
-            database.updateDevice(userId, deviceId, deviceName, deviceNickname, deviceStates, errorCode, tfa);
-
-            JSONObject statesJson = new JSONObject(deviceStates);
-            Struct.Builder statesStruct = Struct.newBuilder();
-            try {
-                JsonFormat.parser().ignoringUnknownFields()
-                        .merge(statesJson.toString(), statesStruct);
-            } catch (Exception e) {
-                LOGGER.error("FAILED TO BUILD");
+            update = Json.read(req, DeviceRequests.Update.class);
+        } catch (JsonParseException e) {
+            LOGGER.error("invalid update request", e);
+            res.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        }
+        String userId = update.getUserId();
+        String deviceId = update.getDeviceId();
+        if (userId == null || deviceId == null) {
+            res.sendError(HttpServletResponse.SC_BAD_REQUEST, "userId and deviceId are required");
+            return;
+        }
+        String deviceName = update.getName();
+        String deviceNickname = update.getNickname();
+        Map<String, Object> deviceStates = update.getStates();
+        String errorCode = update.getErrorCode();
+        String tfa = update.getTfa();
+        try {
+            DeviceStore.getInstance().updateDevice(userId, deviceId, deviceName, deviceNickname,
+                    deviceStates, errorCode, tfa);
+            if (deviceName != null || deviceNickname != null) {
+                // Names are part of the SYNC response, states and errors are not
+                MySmartHomeApp.invalidateSync(userId);
             }
 
-
-            HomeGraphApiServiceProto.ReportStateAndNotificationDevice.Builder deviceBuilder =
-                    HomeGraphApiServiceProto.ReportStateAndNotificationDevice.newBuilder()
-                            .setStates(Struct.newBuilder().putFields(deviceId,
-                                    Value.newBuilder().setStructValue(statesStruct).build()));
-
-            HomeGraphApiServiceProto.ReportStateAndNotificationRequest request =
-                    HomeGraphApiServiceProto.ReportStateAndNotificationRequest.newBuilder()
-                            .setRequestId(String.valueOf(Math.random()))
-                            .setAgentUserId("1836.15267389") // our single user's id
-                            .setPayload(HomeGraphApiServiceProto.
-                                    StateAndNotificationPayload.newBuilder()
-                                    .setDevices(deviceBuilder)).build();
-
-            actionsApp.reportState(request);
+            if (deviceStates != null) {
+                try {
+                    // Sent asynchronously, together with other updates of the next few millis
+                    SmartHomeContext.getInstance().getReportStateBatcher().report(
+                            MySmartHomeApp.AGENT_USER_ID, deviceId,
+                            StructConverter.toStruct(deviceStates));
+                } catch (StructConversionException e) {
+                    LOGGER.error("failed to convert states of device {}: {}", deviceId,
+                            e.getMessage());
+                }
+            }
         } catch (Exception e) {
             LOGGER.error("failed to update device");
             throw e;
@@ -111,6 +86,9 @@ public class SmartHomeUpdateServlet extends HttpServlet {
             res.setContentType("text/plain");
             res.getWriter().println("OK");
         }
+        if (RequestLog.isSampled(RequestLog.UPDATE)) {
+            RequestLog.log(RequestLog.UPDATE, update, "OK", start);
+        }
     }
 
     @Override protected void doGet(HttpServletRequest request, HttpServletResponse response)
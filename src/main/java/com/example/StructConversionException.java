@@ -0,0 +1,35 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+/**
+ * Thrown by {@link StructConverter} when a value has no protobuf representation.
+ */
+public class StructConversionException extends Exception {
+
+    private final String path;
+
+    public StructConversionException(String path, String message) {
+        super((path.isEmpty() ? "<root>" : path) + ": " + message);
+        this.path = path;
+    }
+
+    /** Returns the dot-separated path of the value that could not be converted. */
+    public String getPath() {
+        return path;
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import com.google.protobuf.ListValue;
+import com.google.protobuf.NullValue;
+import com.google.protobuf.Struct;
+import com.google.protobuf.Value;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Converts the maps that Firestore and Gson produce straight into protobuf {@link Struct}s,
+ * without going through JSON text.
+ */
+public final class StructConverter {
+
+    private static final Value NULL_VALUE =
+            Value.newBuilder().setNullValue(NullValue.NULL_VALUE).build();
+    private static final Value TRUE_VALUE = Value.newBuilder().setBoolValue(true).build();
+    private static final Value FALSE_VALUE = Value.newBuilder().setBoolValue(false).build();
+
+    private StructConverter() {
+    }
+
+    public static Struct toStruct(Map<String, ?> map) throws StructConversionException {
+        return toStruct(map, "");
+    }
+
+    public static Value toValue(Object value) throws StructConversionException {
+        return toValue(value, "");
+    }
+
+    private static Struct toStruct(Map<?, ?> map, String path) throws StructConversionException {
+        Struct.Builder struct = Struct.newBuilder();
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            if (!(entry.getKey() instanceof String)) {
+                throw new StructConversionException(path, "key is not a string");
+            }
+            String key = (String) entry.getKey();
+            String fieldPath = path.isEmpty() ? key : path + '.' + key;
+            struct.putFields(key, toValue(entry.getValue(), fieldPath));
+        }
+        return struct.build();
+    }
+
+    private static Value toValue(Object value, String path) throws StructConversionException {
+        if (value == null) {
+            return NULL_VALUE;
+        } else if (value instanceof String) {
+            return Value.newBuilder().setStringValue((String) value).build();
+        } else if (value instanceof Boolean) {
+            return (Boolean) value ? TRUE_VALUE : FALSE_VALUE;
+        } else if (value instanceof Number) {
+            return Value.newBuilder().setNumberValue(((Number) value).doubleValue()).build();
+        } else if (value instanceof Map) {
+            return Value.newBuilder().setStructValue(toStruct((Map<?, ?>) value, path)).build();
+        } else if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            ListValue.Builder listValue = ListValue.newBuilder();
+            for (int i = 0; i < list.size(); i++) {
+                listValue.addValues(toValue(list.get(i), path + '[' + i + ']'));
+            }
+            return Value.newBuilder().setListValue(listValue).build();
+        } else if (value instanceof CharSequence || value instanceof Character
+                || value instanceof Enum) {
+            return Value.newBuilder().setStringValue(value.toString()).build();
+        }
+        throw new StructConversionException(path,
+                "unsupported type " + value.getClass().getName());
+    }
+}
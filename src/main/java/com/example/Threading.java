@@ -0,0 +1,90 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Chooses between bounded pools of platform threads, the default, and virtual threads. Virtual
+ * threads are used when the {@code smarthome.threads} system property is {@code virtual} and the
+ * classes of the Java 21 build ({@code gradle build -Pjava21}) can be loaded, which needs a Java 21
+ * runtime started with {@code --enable-preview}.
+ */
+public final class Threading {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MySmartHomeApp.class);
+    private static final String VIRTUAL_THREAD_SUPPORT = "com.example.VirtualThreadSupport";
+    private static final ThreadingSupport VIRTUAL = loadVirtualThreadSupport();
+
+    private Threading() {
+    }
+
+    public static boolean isVirtual() {
+        return VIRTUAL != null;
+    }
+
+    /**
+     * Returns an executor for the tasks of {@code name}: a virtual thread per task, or at most
+     * {@code threads} platform threads with up to {@code queueSize} waiting tasks.
+     */
+    public static ExecutorService newExecutor(String name, int threads, int queueSize) {
+        if (VIRTUAL != null) {
+            return VIRTUAL.newExecutor(name);
+        }
+        AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueSize), runnable -> {
+                    Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /** Returns the fan-out for per-device work, using {@code threads} if on platform threads. */
+    public static ExecuteFanOut newFanOut(int threads) {
+        return VIRTUAL != null ? VIRTUAL.newFanOut() : new ExecuteFanOut(threads);
+    }
+
+    private static ThreadingSupport loadVirtualThreadSupport() {
+        if (!"virtual".equals(System.getProperty("smarthome.threads"))) {
+            return null;
+        }
+        try {
+            ThreadingSupport support = newVirtualThreadSupport();
+            LOGGER.info("running fulfillment on virtual threads");
+            return support;
+        } catch (ReflectiveOperationException | LinkageError e) {
+            LOGGER.warn("virtual threads need the Java 21 build on a Java 21 runtime with "
+                    + "--enable-preview, using platform threads: {}", e.toString());
+            return null;
+        }
+    }
+
+    /** Loads the virtual thread support of the Java 21 build, failing if it is not available. */
+    static ThreadingSupport newVirtualThreadSupport() throws ReflectiveOperationException {
+        return (ThreadingSupport) Class.forName(VIRTUAL_THREAD_SUPPORT).getConstructor()
+                .newInstance();
+    }
+}
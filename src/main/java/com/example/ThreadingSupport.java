@@ -0,0 +1,31 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Creates the threads that fulfillment runs on. Implemented outside the Java 8 sources by
+ * {@code VirtualThreadSupport} in {@code src/java21/java}, see {@link Threading}.
+ */
+public interface ThreadingSupport {
+
+    /** Returns an executor that starts a new thread for every task. */
+    ExecutorService newExecutor(String name);
+
+    ExecuteFanOut newFanOut();
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+/**
+ * Handler of a single smart home command, e.g. {@code action.devices.commands.OnOff}. Handlers
+ * are registered with {@link DeviceCommands#register(TraitCommand)}.
+ */
+public final class TraitCommand {
+
+    private final String command;
+    private final Handler handler;
+
+    /**
+     * @param command the command id
+     * @param handler applies the command to a device, throwing an {@link ErrorCodeException} if
+     *     it cannot
+     */
+    public TraitCommand(String command, Handler handler) {
+        this.command = command;
+        this.handler = handler;
+    }
+
+    public String getCommand() {
+        return command;
+    }
+
+    void apply(CommandContext context) throws Exception {
+        handler.apply(context);
+    }
+
+    public interface Handler {
+        void apply(CommandContext context) throws Exception;
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.gson.stream.JsonReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Test;
+
+public class BulkProvisionerTest {
+
+    private final RecordingStore store = new RecordingStore();
+    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(4);
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void readsAJsonArray() throws Exception {
+        List<BulkProvisioner.DeviceResult> results =
+                provision(10, "[" + create("1234", "a") + "," + create("1234", "b") + "]");
+
+        assertStatuses(results, "SUCCESS", "SUCCESS");
+        assertEquals(2, store.getDevices("1234").size());
+    }
+
+    @Test
+    public void readsNewlineDelimitedJson() throws Exception {
+        List<BulkProvisioner.DeviceResult> results =
+                provision(10, create("1234", "a") + "\n" + create("5678", "b") + "\n");
+
+        assertStatuses(results, "SUCCESS", "SUCCESS");
+        assertEquals(Collections.singleton("a"), store.getDevices("1234").keySet());
+        assertEquals(Collections.singleton("b"), store.getDevices("5678").keySet());
+    }
+
+    @Test
+    public void writesChunksOfAtMostMaxBatchWrites() throws Exception {
+        StringBuilder body = new StringBuilder();
+        int count = DeviceStore.MAX_BATCH_WRITES * 2 + 10;
+        for (int i = 0; i < count; i++) {
+            body.append(create("1234", "device-" + i)).append('\n');
+        }
+
+        provision(DeviceStore.MAX_BATCH_WRITES + 100, body.toString());
+
+        assertEquals(Arrays.asList(DeviceStore.MAX_BATCH_WRITES, DeviceStore.MAX_BATCH_WRITES,
+                10), store.chunkSizes);
+        assertEquals(count, store.getDevices("1234").size());
+    }
+
+    @Test
+    public void limitsTheChunksInFlight() throws Exception {
+        store.delayMillis = 20;
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            body.append(create("1234", "device-" + i)).append('\n');
+        }
+
+        BulkProvisioner provisioner = new BulkProvisioner(store, Json.GSON, 2, 2);
+        List<BulkProvisioner.DeviceResult> results =
+                provisioner.provision(new JsonReader(new StringReader(body.toString())));
+
+        assertEquals(10, store.chunkSizes.size());
+        assertTrue(store.maxInFlight.get() <= 2);
+        for (BulkProvisioner.DeviceResult result : results) {
+            assertEquals("SUCCESS", result.getStatus());
+        }
+    }
+
+    @Test
+    public void writesTheDevicesReadBeforeAMalformedRecord() throws Exception {
+        BulkProvisioner provisioner = new BulkProvisioner(store, Json.GSON, 10, 2);
+        List<BulkProvisioner.DeviceResult> results = provisioner.provision(new JsonReader(
+                new StringReader(create("1234", "a") + "\n" + create("1234", "b")
+                        + "\n{\"userId\":\"1234\",\"data\":{")));
+
+        assertStatuses(results, "SUCCESS", "SUCCESS", "ERROR");
+        BulkProvisioner.DeviceResult invalid = results.get(2);
+        assertNull(invalid.getDeviceId());
+        assertEquals("invalidJson", invalid.getErrorCode());
+        assertNotNull(provisioner.getError());
+        assertEquals(2, store.getDevices("1234").size());
+        assertEquals(Collections.singleton("1234"), provisioner.getUserIds());
+    }
+
+    @Test
+    public void rejectsDevicesWithoutId() throws Exception {
+        List<BulkProvisioner.DeviceResult> results =
+                provision(10, "[{\"userId\":\"1234\",\"data\":{}}," + create("1234", "a") + "]");
+
+        assertStatuses(results, "ERROR", "SUCCESS");
+        assertEquals("invalidDevice", results.get(0).getErrorCode());
+    }
+
+    @Test
+    public void failsTheDevicesOfAFailedChunk() throws Exception {
+        store.fail = true;
+
+        List<BulkProvisioner.DeviceResult> results =
+                provision(10, "[" + create("1234", "a") + "]");
+
+        assertStatuses(results, "ERROR");
+        assertEquals("transientError", results.get(0).getErrorCode());
+    }
+
+    private List<BulkProvisioner.DeviceResult> provision(int chunkSize, String body)
+            throws IOException, InterruptedException {
+        return new BulkProvisioner(store, Json.GSON, chunkSize, 4)
+                .provision(new JsonReader(new StringReader(body)));
+    }
+
+    private static void assertStatuses(List<BulkProvisioner.DeviceResult> results,
+            String... statuses) {
+        List<String> actual = new ArrayList<>();
+        for (BulkProvisioner.DeviceResult result : results) {
+            actual.add(result.getStatus());
+        }
+        assertEquals(Arrays.asList(statuses), actual);
+    }
+
+    private static String create(String userId, String deviceId) {
+        return "{\"userId\":\"" + userId + "\",\"data\":{\"deviceId\":\"" + deviceId
+                + "\",\"name\":\"" + deviceId + "\"}}";
+    }
+
+    /** Records every chunk, optionally completing its write later or failing it. */
+    private class RecordingStore extends InMemoryDeviceStore {
+        final List<Integer> chunkSizes = Collections.synchronizedList(new ArrayList<>());
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        volatile long delayMillis;
+        volatile boolean fail;
+
+        @Override
+        public CompletableFuture<Void> addDevices(String userId,
+                List<Map<String, Object>> devices) {
+            chunkSizes.add(devices.size());
+            if (fail) {
+                throw new IllegalStateException("unavailable");
+            }
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            CompletableFuture<Void> write = new CompletableFuture<>();
+            scheduler.schedule(() -> {
+                inFlight.decrementAndGet();
+                super.addDevices(userId, devices);
+                write.complete(null);
+            }, delayMillis, TimeUnit.MILLISECONDS);
+            return write;
+        }
+    }
+}
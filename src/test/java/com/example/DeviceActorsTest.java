@@ -0,0 +1,205 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import org.junit.After;
+import org.junit.Test;
+
+public class DeviceActorsTest {
+
+    private static final String USER_ID = "1234";
+    private static final String DEVICE_ID = "light";
+
+    private final DeviceActors actors = new DeviceActors();
+    private final ExecutorService executor = Executors.newFixedThreadPool(8);
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void mutationsOfADeviceNeverOverlap() throws Exception {
+        AtomicInteger running = new AtomicInteger();
+        AtomicBoolean overlapped = new AtomicBoolean();
+        int[] count = {0};
+        List<Future<?>> futures = new ArrayList<>();
+        for (int thread = 0; thread < 8; thread++) {
+            futures.add(executor.submit(() -> {
+                for (int i = 0; i < 1000; i++) {
+                    actors.call(USER_ID, DEVICE_ID, device -> {
+                        if (running.incrementAndGet() > 1) {
+                            overlapped.set(true);
+                        }
+                        count[0]++;
+                        running.decrementAndGet();
+                        return null;
+                    });
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get(10, TimeUnit.SECONDS);
+        }
+
+        assertFalse(overlapped.get());
+        assertEquals(8000, actors.call(USER_ID, DEVICE_ID, device -> count[0]).intValue());
+    }
+
+    @Test
+    public void queuedMutationsRunInTheOrderTheyWereSent() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Future<?> busy = executor.submit(() -> actors.call(USER_ID, DEVICE_ID, device -> {
+            started.countDown();
+            release.await();
+            return null;
+        }));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            int mutation = i;
+            futures.add(executor.submit(() -> actors.call(USER_ID, DEVICE_ID, device ->
+                    order.add(mutation))));
+            // Sent only once the previous one is queued
+            waitFor(() -> actors.getQueued() == mutation + 1);
+        }
+
+        release.countDown();
+        busy.get(5, TimeUnit.SECONDS);
+        for (Future<?> future : futures) {
+            future.get(5, TimeUnit.SECONDS);
+        }
+
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4), order);
+    }
+
+    @Test
+    public void writeGetsTheNewestValuesOfItsFields() throws Exception {
+        update(true);
+        try (DeviceActors.Write write =
+                actors.beginWrite(USER_ID, Collections.singletonList(DEVICE_ID))) {
+            update(false);
+
+            Map<String, Object> fields =
+                    write.getFields(DEVICE_ID, Collections.singletonMap("states.on", true));
+
+            assertEquals(false, fields.get("states.on"));
+        }
+    }
+
+    @Test
+    public void actorIsKeptUntilItsDocumentIsPersisted() throws Exception {
+        update(true);
+        // No mutation is running, but the document has not been written yet
+        assertNotNull(document());
+
+        try (DeviceActors.Write write =
+                actors.beginWrite(USER_ID, Collections.singletonList(DEVICE_ID))) {
+            write.getFields(DEVICE_ID, Collections.singletonMap("states.on", true));
+            assertNotNull(document());
+            write.complete(DEVICE_ID, true);
+        }
+
+        assertNull(document());
+    }
+
+    @Test
+    public void mutationAfterTheWriteReadItsFieldsIsKept() throws Exception {
+        update(true);
+        try (DeviceActors.Write write =
+                actors.beginWrite(USER_ID, Collections.singletonList(DEVICE_ID))) {
+            write.getFields(DEVICE_ID, Collections.singletonMap("states.on", true));
+            update(false);
+            write.complete(DEVICE_ID, true);
+        }
+
+        assertEquals(false, DeviceStateCache.getField(document(), "states.on"));
+    }
+
+    @Test
+    public void failedWriteDiscardsTheDocument() throws Exception {
+        update(true);
+        try (DeviceActors.Write write =
+                actors.beginWrite(USER_ID, Collections.singletonList(DEVICE_ID))) {
+            write.getFields(DEVICE_ID, Collections.singletonMap("states.on", true));
+            write.complete(DEVICE_ID, false);
+        }
+
+        assertNull(document());
+    }
+
+    @Test
+    public void writesOfADeviceStartOneAfterAnother() throws Exception {
+        DeviceActors.Write first = actors.beginWrite(USER_ID, Arrays.asList("a", "b"));
+        Future<DeviceActors.Write> second =
+                executor.submit(() -> actors.beginWrite(USER_ID, Arrays.asList("b", "c")));
+
+        // Writes of other devices do not wait
+        actors.beginWrite(USER_ID, Collections.singletonList("d")).close();
+        Thread.sleep(100);
+        assertFalse(second.isDone());
+
+        first.close();
+        second.get(5, TimeUnit.SECONDS).close();
+    }
+
+    private void update(boolean on) throws Exception {
+        actors.call(USER_ID, DEVICE_ID, device -> {
+            Map<String, Object> states = new HashMap<>();
+            states.put("on", on);
+            Map<String, Object> document = new HashMap<>();
+            document.put("states", states);
+            device.update(document);
+            return null;
+        });
+    }
+
+    private Map<String, Object> document() throws Exception {
+        return actors.call(USER_ID, DEVICE_ID, DeviceActors.Device::getDocument);
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+    }
+}
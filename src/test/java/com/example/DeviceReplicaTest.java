@@ -0,0 +1,226 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.cloud.Timestamp;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+public class DeviceReplicaTest {
+
+    private static final String USER_ID = "1234";
+
+    private final BlockingQueue<DeviceReplica.Listener> listeners = new LinkedBlockingQueue<>();
+    private final AtomicInteger removed = new AtomicInteger();
+    private final DeviceReplica.Source source = (userId, listener) -> {
+        listeners.add(listener);
+        return removed::incrementAndGet;
+    };
+
+    @Test
+    public void readsNothingUntilTheFirstSnapshot() throws InterruptedException {
+        DeviceReplica replica = new DeviceReplica(source, true, 10, 60000, 10);
+
+        assertNull(replica.get(USER_ID, "light"));
+        assertNull(replica.getDevices(USER_ID));
+        listener().onEvent(snapshot(1, devices("light", true), null), null);
+
+        assertEquals(true, states(replica.get(USER_ID, "light")).get("on"));
+        assertEquals(1, replica.getDevices(USER_ID).size());
+        assertEquals(1, replica.getHits());
+        assertEquals(1, replica.getMisses());
+    }
+
+    @Test
+    public void appliesChangedAndRemovedDevices() throws InterruptedException {
+        DeviceReplica replica = new DeviceReplica(source, true, 10, 60000, 10);
+        replica.get(USER_ID, "light");
+        DeviceReplica.Listener listener = listener();
+        Map<String, Map<String, Object>> devices = devices("light", false);
+        devices.putAll(devices("fan", false));
+        listener.onEvent(snapshot(1, devices, null), null);
+
+        Map<String, Map<String, Object>> changes = devices("light", true);
+        changes.put("fan", null);
+        listener.onEvent(snapshot(2, null, changes), null);
+
+        assertEquals(true, states(replica.get(USER_ID, "light")).get("on"));
+        assertNull(replica.get(USER_ID, "fan"));
+        assertEquals(Collections.singleton("light"), replica.getDevices(USER_ID).keySet());
+    }
+
+    @Test
+    public void writtenDeviceIsReadOnceASnapshotIncludesTheWrite() throws InterruptedException {
+        DeviceReplica replica = started();
+        DeviceReplica.Listener listener = listener();
+        listener.onEvent(snapshot(1, devices("light", false), null), null);
+
+        replica.pending(USER_ID, "light");
+        assertNull(replica.get(USER_ID, "light"));
+        replica.written(USER_ID, "light", time(3));
+        listener.onEvent(snapshot(2, null, new HashMap<>()), null);
+        assertNull(replica.get(USER_ID, "light"));
+
+        listener.onEvent(snapshot(3, null, devices("light", true)), null);
+        assertEquals(true, states(replica.get(USER_ID, "light")).get("on"));
+    }
+
+    @Test
+    public void overlappingWritesWaitForTheLastOne() throws InterruptedException {
+        DeviceReplica replica = started();
+        DeviceReplica.Listener listener = listener();
+        listener.onEvent(snapshot(1, devices("light", false), null), null);
+
+        replica.pending(USER_ID, "light");
+        replica.pending(USER_ID, "light");
+        replica.written(USER_ID, "light", time(2));
+        listener.onEvent(snapshot(2, null, devices("light", true)), null);
+        // The second write is still running
+        assertNull(replica.get(USER_ID, "light"));
+
+        replica.written(USER_ID, "light", time(3));
+        assertNull(replica.get(USER_ID, "light"));
+        listener.onEvent(snapshot(3, null, devices("light", false)), null);
+        assertEquals(false, states(replica.get(USER_ID, "light")).get("on"));
+    }
+
+    @Test
+    public void failedWriteKeepsOtherWritesPending() throws InterruptedException {
+        DeviceReplica replica = started();
+        DeviceReplica.Listener listener = listener();
+        listener.onEvent(snapshot(1, devices("light", false), null), null);
+
+        replica.pending(USER_ID, "light");
+        replica.pending(USER_ID, "light");
+        replica.written(USER_ID, "light", null);
+        listener.onEvent(snapshot(2, null, new HashMap<>()), null);
+        assertNull(replica.get(USER_ID, "light"));
+
+        replica.written(USER_ID, "light", null);
+        assertNotNull(replica.get(USER_ID, "light"));
+    }
+
+    @Test
+    public void failedListenerIsAttachedAgain() throws InterruptedException {
+        DeviceReplica replica = started();
+        DeviceReplica.Listener listener = listener();
+        listener.onEvent(snapshot(1, devices("light", false), null), null);
+
+        listener.onEvent(null, new IllegalStateException("unavailable"));
+
+        assertEquals(1, removed.get());
+        assertNull(replica.get(USER_ID, "light"));
+        listener().onEvent(snapshot(2, devices("light", true), null), null);
+        assertEquals(true, states(replica.get(USER_ID, "light")).get("on"));
+    }
+
+    @Test
+    public void idleUsersAreEvicted() throws InterruptedException {
+        DeviceReplica replica = new DeviceReplica(source, true, 10, 50, 10);
+        replica.get(USER_ID, "light");
+        listener();
+        Thread.sleep(100);
+
+        replica.evictIdleUsers();
+
+        assertEquals(0, replica.getUsers());
+        assertEquals(1, removed.get());
+    }
+
+    @Test
+    public void doesNotListenBeyondMaxUsers() {
+        DeviceReplica replica = new DeviceReplica(source, true, 1, 60000, 10);
+
+        replica.get(USER_ID, "light");
+        replica.get("5678", "light");
+
+        assertEquals(1, replica.getUsers());
+        assertEquals(1, listeners.size());
+    }
+
+    @Test
+    public void disabledReplicaDoesNotListen() {
+        DeviceReplica replica = new DeviceReplica(source, false, 10, 60000, 10);
+
+        assertNull(replica.get(USER_ID, "light"));
+        assertNull(replica.getDevices(USER_ID));
+        assertTrue(listeners.isEmpty());
+    }
+
+    /** Returns a replica listening to the devices of the user. */
+    private DeviceReplica started() {
+        DeviceReplica replica = new DeviceReplica(source, true, 10, 60000, 10);
+        replica.get(USER_ID, "light");
+        return replica;
+    }
+
+    private DeviceReplica.Listener listener() throws InterruptedException {
+        DeviceReplica.Listener listener = listeners.poll(5, TimeUnit.SECONDS);
+        assertNotNull(listener);
+        return listener;
+    }
+
+    private static Map<String, Map<String, Object>> devices(String deviceId, boolean on) {
+        Map<String, Object> states = new HashMap<>();
+        states.put("on", on);
+        Map<String, Object> device = new HashMap<>();
+        device.put("states", states);
+        Map<String, Map<String, Object>> devices = new HashMap<>();
+        devices.put(deviceId, device);
+        return devices;
+    }
+
+    private static Map<String, Object> states(Map<String, Object> device) {
+        assertNotNull(device);
+        return (Map<String, Object>) device.get("states");
+    }
+
+    private static Timestamp time(long seconds) {
+        return Timestamp.ofTimeSecondsAndNanos(seconds, 0);
+    }
+
+    private static DeviceReplica.Snapshot snapshot(long seconds,
+            Map<String, Map<String, Object>> devices, Map<String, Map<String, Object>> changes) {
+        return new DeviceReplica.Snapshot() {
+            @Override
+            public Timestamp getReadTime() {
+                return time(seconds);
+            }
+
+            @Override
+            public Map<String, Map<String, Object>> getDevices() {
+                return devices;
+            }
+
+            @Override
+            public Map<String, Map<String, Object>> getChanges() {
+                return changes;
+            }
+        };
+    }
+}
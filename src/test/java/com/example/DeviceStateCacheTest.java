@@ -0,0 +1,127 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Test;
+
+public class DeviceStateCacheTest {
+
+    @Test
+    public void appliesUpdatesToCachedDevices() {
+        DeviceStateCache cache = new DeviceStateCache(10, 60000);
+        cache.put("user", "light", device(false));
+
+        cache.update("user", "light", Collections.singletonMap("states.on", true));
+
+        assertEquals(true, states(cache.get("user", "light").getData()).get("on"));
+    }
+
+    @Test
+    public void doesNotCacheAReadThatStartedBeforeAWrite() {
+        DeviceStateCache cache = new DeviceStateCache(10, 60000);
+        long loadVersion = cache.beginLoad();
+        // Written while the read is in flight, the device is not cached yet
+        cache.update("user", "light", Collections.singletonMap("states.on", true));
+
+        cache.load("user", "light", device(false), loadVersion);
+
+        assertNull(cache.get("user", "light"));
+    }
+
+    @Test
+    public void writesDoNotDropReadsOfOtherDevices() {
+        DeviceStateCache cache = new DeviceStateCache(10, 60000);
+        long loadVersion = cache.beginLoad();
+        cache.update("user", "light", Collections.singletonMap("states.on", true));
+        cache.invalidate("user", "fan");
+
+        cache.load("user", "lock", device(false), loadVersion);
+
+        assertNotNull(cache.get("user", "lock"));
+    }
+
+    @Test
+    public void cachesReadsThatStartAfterAnInvalidation() {
+        DeviceStateCache cache = new DeviceStateCache(10, 60000);
+        cache.put("user", "light", device(false));
+        cache.invalidate("user", "light");
+        assertNull(cache.get("user", "light"));
+
+        cache.load("user", "light", device(true), cache.beginLoad());
+
+        assertEquals(true, states(cache.get("user", "light").getData()).get("on"));
+    }
+
+    @Test
+    public void doesNotCacheAReadThatMissedAnEvictedWrite() {
+        DeviceStateCache cache = new DeviceStateCache(1, 60000);
+        long loadVersion = cache.beginLoad();
+        cache.update("user", "light", Collections.singletonMap("states.on", true));
+        // Evicts the entry that remembers the write
+        cache.put("user", "fan", device(false));
+
+        cache.load("user", "light", device(false), loadVersion);
+
+        assertNull(cache.get("user", "light"));
+    }
+
+    @Test
+    public void countsHitsAndMisses() {
+        DeviceStateCache cache = new DeviceStateCache(10, 60000);
+        cache.put("user", "light", device(false));
+
+        cache.get("user", "light");
+        cache.get("user", "fan");
+
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void withFieldsCopiesNestedMaps() {
+        Map<String, Object> device = device(false);
+
+        Map<String, Object> updated = DeviceStateCache.withFields(device,
+                Collections.singletonMap("states.on", true));
+
+        assertEquals(false, states(device).get("on"));
+        assertEquals(true, states(updated).get("on"));
+        assertEquals(true, DeviceStateCache.getField(updated, "states.on"));
+        assertNull(DeviceStateCache.getField(updated, "states.brightness"));
+    }
+
+    private static Map<String, Object> device(boolean on) {
+        Map<String, Object> states = new HashMap<>();
+        states.put("on", on);
+        Map<String, Object> device = new HashMap<>();
+        device.put("deviceId", "light");
+        device.put("states", states);
+        return device;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> states(Map<String, Object> device) {
+        return (Map<String, Object>) device.get("states");
+    }
+}
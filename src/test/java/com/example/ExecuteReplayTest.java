@@ -0,0 +1,152 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.actions.api.smarthome.ExecuteRequest;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ExecuteReplayTest {
+
+    private static final AtomicInteger REQUEST_IDS = new AtomicInteger();
+
+    private final CountingStore store = new CountingStore();
+    private final MySmartHomeApp app = new MySmartHomeApp(store);
+    private final Map<String, String> headers =
+            Collections.singletonMap("authorization", "Bearer 123access");
+
+    @Before
+    public void setUp() {
+        store.addUser("1234", "123access");
+        store.addDevice("1234", light("light"));
+    }
+
+    @Test
+    public void retryOfACompletedRequestIsReplayed() throws Exception {
+        String request = executeRequest(nextRequestId(), true);
+
+        String response = app.handleRequest(request, headers).get();
+        String retry = app.handleRequest(request, headers).get();
+
+        assertEquals(1, store.executions.get());
+        assertEquals(response, retry);
+        assertTrue(response.contains("SUCCESS"));
+    }
+
+    @Test
+    public void requestsWithOtherIdsAreExecuted() throws Exception {
+        app.handleRequest(executeRequest(nextRequestId(), true), headers).get();
+        app.handleRequest(executeRequest(nextRequestId(), false), headers).get();
+
+        assertEquals(2, store.executions.get());
+        assertEquals(false, store.getState("1234", "light").get("on"));
+    }
+
+    @Test
+    public void retryOfATransientlyFailedRequestIsExecutedAgain() throws Exception {
+        String request = executeRequest(nextRequestId(), true);
+        store.failNextCommit.set(true);
+
+        String response = app.handleRequest(request, headers).get();
+        String retry = app.handleRequest(request, headers).get();
+
+        assertEquals(2, store.executions.get());
+        assertTrue(response.contains("transientError"));
+        assertFalse(retry.contains("transientError"));
+        assertTrue(retry.contains("SUCCESS"));
+    }
+
+    @Test
+    public void retryOfARequestWithAFailedReadIsExecutedAgain() throws Exception {
+        String request = executeRequest(nextRequestId(), true);
+        store.failNextRead.set(true);
+
+        String response = app.handleRequest(request, headers).get();
+        String retry = app.handleRequest(request, headers).get();
+
+        assertEquals(2, store.executions.get());
+        assertTrue(response.contains("transientError"));
+        assertFalse(response.contains("UNAVAILABLE"));
+        assertTrue(retry.contains("SUCCESS"));
+        assertEquals(true, store.getState("1234", "light").get("on"));
+    }
+
+    private static String nextRequestId() {
+        return "replay-" + REQUEST_IDS.incrementAndGet();
+    }
+
+    private static String executeRequest(String requestId, boolean on) {
+        return "{\"requestId\":\"" + requestId + "\",\"inputs\":[{\"intent\":"
+                + "\"action.devices.EXECUTE\",\"payload\":{\"commands\":[{\"devices\":["
+                + "{\"id\":\"light\"}],\"execution\":[{\"command\":"
+                + "\"action.devices.commands.OnOff\",\"params\":{\"on\":" + on + "}}]}]}}]}";
+    }
+
+    private static Map<String, Object> light(String deviceId) {
+        Map<String, Object> states = new HashMap<>();
+        states.put("online", true);
+        states.put("on", false);
+        Map<String, Object> device = new HashMap<>();
+        device.put("deviceId", deviceId);
+        device.put("type", "action.devices.types.LIGHT");
+        device.put("traits", new ArrayList<>(
+                Collections.singletonList("action.devices.traits.OnOff")));
+        device.put("name", deviceId);
+        device.put("errorCode", "");
+        device.put("tfa", "");
+        device.put("states", states);
+        return device;
+    }
+
+    /** Counts executed commands and can fail the next read or commit like a database would. */
+    private static class CountingStore extends InMemoryDeviceStore {
+        final AtomicInteger executions = new AtomicInteger();
+        final AtomicBoolean failNextRead = new AtomicBoolean();
+        final AtomicBoolean failNextCommit = new AtomicBoolean();
+
+        @Override
+        public Map<String, Object> execute(String userId, String deviceId,
+                ExecuteRequest.Inputs.Payload.Commands.Execution execution, ExecuteBatch batch)
+                throws Exception {
+            executions.incrementAndGet();
+            if (failNextRead.compareAndSet(true, false)) {
+                throw new ExecutionException(new IOException("UNAVAILABLE: io exception"));
+            }
+            return super.execute(userId, deviceId, execution, batch);
+        }
+
+        @Override
+        public Map<String, String> commit(ExecuteBatch batch) {
+            if (failNextCommit.compareAndSet(true, false)) {
+                return Collections.singletonMap("light", "transientError");
+            }
+            return super.commit(batch);
+        }
+    }
+}
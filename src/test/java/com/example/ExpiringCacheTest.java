@@ -0,0 +1,82 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class ExpiringCacheTest {
+
+    @Test
+    public void returnsCachedValuesAndCountsLookups() {
+        ExpiringCache<String, String> cache = new ExpiringCache<>(10, 60000);
+        cache.put("token", "user");
+
+        assertEquals("user", cache.get("token"));
+        assertNull(cache.get("other"));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void expiresEntriesAfterTheirTimeToLive() throws InterruptedException {
+        ExpiringCache<String, String> cache = new ExpiringCache<>(10, 20);
+        cache.put("token", "user");
+        Thread.sleep(50);
+
+        assertNull(cache.get("token"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUsedEntry() {
+        ExpiringCache<String, String> cache = new ExpiringCache<>(2, 60000);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.get("a");
+        cache.put("c", "3");
+
+        assertEquals("1", cache.get("a"));
+        assertNull(cache.get("b"));
+        assertEquals("3", cache.get("c"));
+    }
+
+    @Test
+    public void putIfAbsentKeepsTheFirstValue() {
+        ExpiringCache<String, String> cache = new ExpiringCache<>(10, 60000);
+
+        assertNull(cache.putIfAbsent("request", "first"));
+        assertEquals("first", cache.putIfAbsent("request", "second"));
+        assertEquals("first", cache.get("request"));
+    }
+
+    @Test
+    public void invalidatesMatchingEntries() {
+        ExpiringCache<String, String> cache = new ExpiringCache<>(10, 60000);
+        cache.put("token1", "user1");
+        cache.put("token2", "user2");
+        cache.put("token3", "user1");
+
+        cache.invalidateIf((token, userId) -> userId.equals("user1"));
+
+        assertNull(cache.get("token1"));
+        assertEquals("user2", cache.get("token2"));
+        assertNull(cache.get("token3"));
+    }
+}
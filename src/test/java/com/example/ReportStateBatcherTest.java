@@ -0,0 +1,142 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import com.google.home.graph.v1.HomeGraphApiServiceProto;
+import com.google.protobuf.Struct;
+import com.google.protobuf.Value;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.After;
+import org.junit.Test;
+
+public class ReportStateBatcherTest {
+
+    private static final String AGENT_USER_ID = "agent";
+
+    private final BlockingQueue<HomeGraphApiServiceProto.ReportStateAndNotificationRequest> sent =
+            new LinkedBlockingQueue<>();
+    private final AtomicBoolean failing = new AtomicBoolean();
+    private ReportStateBatcher batcher;
+
+    @After
+    public void tearDown() {
+        if (batcher != null) {
+            batcher.shutdown();
+        }
+    }
+
+    @Test
+    public void reportsAllStatesOfANewDevice() throws InterruptedException {
+        batcher = newBatcher(1, 60000);
+
+        batcher.report(AGENT_USER_ID, "light", states(true, 50));
+
+        Map<String, Value> reported = next("light");
+        assertEquals(2, reported.size());
+        assertEquals(true, reported.get("on").getBoolValue());
+        assertEquals(50, reported.get("brightness").getNumberValue(), 0);
+    }
+
+    @Test
+    public void reportsOnlyChangedStates() throws InterruptedException {
+        batcher = newBatcher(1, 60000);
+        batcher.report(AGENT_USER_ID, "light", states(true, 50));
+        next("light");
+
+        batcher.report(AGENT_USER_ID, "light", states(true, 80));
+
+        Map<String, Value> reported = next("light");
+        assertEquals(1, reported.size());
+        assertEquals(80, reported.get("brightness").getNumberValue(), 0);
+        assertEquals(4, batcher.getStates());
+        assertEquals(1, batcher.getUnchanged());
+    }
+
+    @Test
+    public void sendsNothingIfNoStateChanged() throws InterruptedException {
+        batcher = newBatcher(1, 60000);
+        batcher.report(AGENT_USER_ID, "light", states(true, 50));
+        next("light");
+
+        batcher.report(AGENT_USER_ID, "light", states(true, 50));
+
+        assertNull(sent.poll(200, TimeUnit.MILLISECONDS));
+        assertEquals(2, batcher.getUnchanged());
+    }
+
+    @Test
+    public void reportsAllStatesAgainAfterTheResyncInterval() throws InterruptedException {
+        batcher = newBatcher(1, 50);
+        batcher.report(AGENT_USER_ID, "light", states(true, 50));
+        next("light");
+        Thread.sleep(100);
+
+        batcher.report(AGENT_USER_ID, "light", states(true, 50));
+
+        assertEquals(2, next("light").size());
+    }
+
+    @Test
+    public void reportsAllStatesAfterGivingUp() throws InterruptedException {
+        batcher = newBatcher(1, 60000);
+        failing.set(true);
+        batcher.report(AGENT_USER_ID, "light", states(true, 50));
+        // The only attempt fails and the states are dropped once the sender throws
+        next("light");
+        Thread.sleep(100);
+        failing.set(false);
+
+        batcher.report(AGENT_USER_ID, "light", states(true, 80));
+
+        assertEquals(2, next("light").size());
+    }
+
+    private ReportStateBatcher newBatcher(int maxAttempts, long resyncMillis) {
+        return new ReportStateBatcher(request -> {
+            sent.add(request);
+            if (failing.get()) {
+                throw new IllegalStateException("unavailable");
+            }
+        }, 10, maxAttempts, resyncMillis);
+    }
+
+    /** Waits for the next request and returns the states it reports for {@code deviceId}. */
+    private Map<String, Value> next(String deviceId) throws InterruptedException {
+        HomeGraphApiServiceProto.ReportStateAndNotificationRequest request =
+                sent.poll(5, TimeUnit.SECONDS);
+        assertNotNull(request);
+        assertEquals(AGENT_USER_ID, request.getAgentUserId());
+        Value device = request.getPayload().getDevices().getStates().getFieldsMap().get(deviceId);
+        assertNotNull(device);
+        return device.getStructValue().getFieldsMap();
+    }
+
+    private static Struct states(boolean on, int brightness) {
+        return Struct.newBuilder()
+                .putFields("on", Value.newBuilder().setBoolValue(on).build())
+                .putFields("brightness", Value.newBuilder().setNumberValue(brightness).build())
+                .build();
+    }
+}
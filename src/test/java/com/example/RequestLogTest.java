@@ -0,0 +1,78 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.junit.Test;
+
+public class RequestLogTest {
+
+    @Test
+    public void redactsSecretStrings() {
+        String body = RequestLog.body("{\"authorization\":\"Bearer 123access\",\"pin\":\"12\\\"34\","
+                + "\"tfa\":\"5678\",\"errorCode\":\"pinNeeded\"}");
+
+        assertEquals("{\"authorization\":\"<redacted>\",\"pin\":\"<redacted>\","
+                + "\"tfa\":\"<redacted>\",\"errorCode\":\"pinNeeded\"}", body);
+    }
+
+    @Test
+    public void redactsParameterArrays() {
+        Map<String, String[]> parameters = new LinkedHashMap<>();
+        parameters.put("grant_type", new String[] {"refresh_token"});
+        parameters.put("refresh_token", new String[] {"123refresh"});
+        parameters.put("client_secret", new String[] {"s]cret"});
+        parameters.put("code", new String[] {"abc", "def"});
+
+        String body = RequestLog.body(parameters);
+
+        assertEquals("{\"grant_type\":[\"refresh_token\"],\"refresh_token\":\"<redacted>\","
+                + "\"client_secret\":\"<redacted>\",\"code\":\"<redacted>\"}", body);
+    }
+
+    @Test
+    public void cutsOffLongBodies() {
+        StringBuilder json = new StringBuilder("{\"devices\":\"");
+        for (int i = 0; i < 5000; i++) {
+            json.append('x');
+        }
+        json.append("\"}");
+
+        String body = RequestLog.body(json.toString());
+
+        assertTrue(body.endsWith("...(" + json.length() + " chars)"));
+        assertTrue(body.length() < json.length());
+    }
+
+    @Test
+    public void findsTheIntentOfARequest() {
+        assertEquals(RequestLog.EXECUTE, RequestLog.intentOf(
+                "{\"inputs\":[{\"intent\":\"action.devices.EXECUTE\"}]}"));
+        assertEquals(RequestLog.UNKNOWN, RequestLog.intentOf("{}"));
+    }
+
+    @Test
+    public void samplesNothingByDefault() {
+        assertFalse(RequestLog.isSampled(RequestLog.EXECUTE));
+        assertFalse(RequestLog.isSampled(RequestLog.TOKEN));
+    }
+}
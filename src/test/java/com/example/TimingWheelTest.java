@@ -0,0 +1,111 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Test;
+
+public class TimingWheelTest {
+
+    // Few buckets, so that some timeouts need more than one turn of the wheel
+    private final TimingWheel wheel = new TimingWheel("test-wheel", 10, TimeUnit.MILLISECONDS, 8);
+
+    @After
+    public void tearDown() {
+        wheel.stop();
+    }
+
+    @Test
+    public void firesTimeoutsAfterTheirDelay() throws InterruptedException {
+        CountDownLatch fired = new CountDownLatch(1);
+        long start = System.nanoTime();
+
+        wheel.schedule(fired::countDown, 50, TimeUnit.MILLISECONDS);
+
+        assertTrue(fired.await(5, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+        assertEquals(0, wheel.getPending());
+    }
+
+    @Test
+    public void firesTimeoutsMoreThanOneTurnAway() throws InterruptedException {
+        CountDownLatch fired = new CountDownLatch(1);
+        long start = System.nanoTime();
+
+        // 8 buckets of 10 ms make one turn 80 ms
+        wheel.schedule(fired::countDown, 200, TimeUnit.MILLISECONDS);
+
+        assertTrue(fired.await(5, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(200));
+    }
+
+    @Test
+    public void doesNotFireCancelledTimeouts() throws InterruptedException {
+        AtomicInteger fired = new AtomicInteger();
+        CountDownLatch later = new CountDownLatch(1);
+
+        TimingWheel.Timeout timeout =
+                wheel.schedule(fired::incrementAndGet, 30, TimeUnit.MILLISECONDS);
+        wheel.schedule(later::countDown, 100, TimeUnit.MILLISECONDS);
+
+        assertTrue(timeout.cancel());
+        assertFalse(timeout.cancel());
+        assertTrue(later.await(5, TimeUnit.SECONDS));
+        assertEquals(0, fired.get());
+        assertEquals(0, wheel.getPending());
+    }
+
+    @Test
+    public void cannotCancelAFiredTimeout() throws InterruptedException {
+        CountDownLatch fired = new CountDownLatch(1);
+
+        TimingWheel.Timeout timeout = wheel.schedule(fired::countDown, 10, TimeUnit.MILLISECONDS);
+
+        assertTrue(fired.await(5, TimeUnit.SECONDS));
+        assertFalse(timeout.cancel());
+    }
+
+    @Test
+    public void firesManyTimeouts() throws InterruptedException {
+        int count = 10000;
+        CountDownLatch fired = new CountDownLatch(count);
+
+        for (int i = 0; i < count; i++) {
+            wheel.schedule(fired::countDown, i % 300, TimeUnit.MILLISECONDS);
+        }
+
+        assertTrue(fired.await(10, TimeUnit.SECONDS));
+        assertEquals(0, wheel.getPending());
+    }
+
+    @Test
+    public void reportsTheDelayLeft() {
+        TimingWheel.Timeout timeout = wheel.schedule(() -> { }, 10, TimeUnit.SECONDS);
+
+        long delay = timeout.getDelay(TimeUnit.MILLISECONDS);
+
+        assertTrue(delay > 9000 && delay <= 10000);
+        assertEquals(1, wheel.getPending());
+    }
+}